@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat;
+
+/**
+ * Downsample battery levels to a fixed number of buckets, such as a bucket per
+ * pixel of a chart, keeping the lowest and highest level in each bucket.
+ * Samples are added one by one, in chronological order: memory usage only
+ * depends on the number of buckets, whatever the number of samples. This class
+ * is not thread-safe.
+ * @author Pixmob
+ */
+public class BatteryDownsampler {
+    private final long from;
+    private final long to;
+    private final int bucketCount;
+    private final BatterySeries series;
+    private int lastBucket = -1;
+
+    /**
+     * Create a new instance.
+     * @param from time range start (inclusive)
+     * @param to time range end (exclusive)
+     * @param bucketCount number of buckets
+     */
+    public BatteryDownsampler(final long from, final long to, final int bucketCount) {
+        this.from = from;
+        this.to = to;
+        this.bucketCount = Math.max(1, bucketCount);
+        series = new BatterySeries(this.bucketCount);
+    }
+
+    /**
+     * Add a sample. Samples outside the time range are ignored.
+     * @param timestamp sample time, not older than the previous sample
+     */
+    public void add(long timestamp, int minLevel, int maxLevel) {
+        if (timestamp < from || timestamp >= to) {
+            return;
+        }
+        final int bucket = (int) ((timestamp - from) * bucketCount / (to - from));
+        if (bucket != lastBucket) {
+            // A bucket is located at its first sample.
+            series.timestamps[series.count] = timestamp;
+            series.minLevels[series.count] = minLevel;
+            series.maxLevels[series.count] = maxLevel;
+            ++series.count;
+            lastBucket = bucket;
+        } else {
+            final int i = series.count - 1;
+            series.minLevels[i] = Math.min(series.minLevels[i], minLevel);
+            series.maxLevels[i] = Math.max(series.maxLevels[i], maxLevel);
+        }
+    }
+
+    /**
+     * Get downsampled battery levels, with a point for each bucket holding
+     * samples. The returned instance is updated when samples are added.
+     */
+    public BatterySeries getSeries() {
+        return series;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat;
+
+/**
+ * Battery levels over time, with the lowest and highest level for each point.
+ * Values are stored in arrays, without allocating an object for each point.
+ * @author Pixmob
+ */
+public class BatterySeries {
+    public int count;
+    public long[] timestamps;
+    public int[] minLevels;
+    public int[] maxLevels;
+
+    public BatterySeries() {
+        this(0);
+    }
+
+    public BatterySeries(final int capacity) {
+        timestamps = new long[capacity];
+        minLevels = new int[capacity];
+        maxLevels = new int[capacity];
+    }
+
+    @Override
+    public String toString() {
+        return "BatterySeries[count=" + count + "]";
+    }
+}
@@ -17,28 +17,84 @@ package org.pixmob.freemobile.netstat;
 
 import static org.pixmob.freemobile.netstat.Constants.TAG;
 
+import java.io.IOException;
 import java.util.Calendar;
 
+import org.pixmob.freemobile.netstat.content.DatabaseMaintenance;
 import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
- * This broadcast receiver removes old data from the database.
+ * This broadcast receiver moves old events to archive segments, removes
+ * events older than a year, and checkpoints the write-ahead log. The cleanup
+ * is run periodically with an inexact alarm, which is set when the device
+ * boots: the cleanup itself is not run while the device is booting.
  * @author Pixmob
  */
 public class DatabaseCleanup extends BroadcastReceiver {
+    private static final String ACTION_CLEANUP = "org.pixmob.freemobile.netstat.cleanup";
+    /**
+     * Number of months where events are kept in the database.
+     */
+    private static final int LIVE_MONTHS = 1;
+    /**
+     * Number of months where events are kept, including archived events.
+     */
+    private static final int ARCHIVE_MONTHS = 12;
+    /**
+     * Delay before the first cleanup (in milliseconds).
+     */
+    private static final long FIRST_CLEANUP_DELAY = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+    /**
+     * Maximum number of events deleted at once.
+     */
+    private static final int CLEANUP_CHUNK_SIZE = 500;
+    /**
+     * Pause between deleted chunks (in milliseconds), so that other database
+     * users are not blocked.
+     */
+    private static final long CLEANUP_CHUNK_DELAY = 200;
+    
     @Override
     public void onReceive(Context context, Intent intent) {
+        if (!ACTION_CLEANUP.equals(intent.getAction())) {
+            // The device just booted.
+            schedule(context);
+            return;
+        }
+        
         // The database cleanup is done in a background thread so that the main
         // thread is not blocked.
         new DatabaseCleanupTask(context.getApplicationContext()).start();
     }
     
+    /**
+     * Schedule the periodic database cleanup, if it's not already scheduled.
+     */
+    public static void schedule(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final Intent i = new Intent(appContext, DatabaseCleanup.class).setAction(ACTION_CLEANUP);
+        if (PendingIntent.getBroadcast(appContext, 0, i, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        
+        // The alarm does not wake up the device: the cleanup is run when the
+        // device is awake, along with other periodic tasks.
+        final AlarmManager am = (AlarmManager) appContext.getSystemService(Context.ALARM_SERVICE);
+        am.setInexactRepeating(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime()
+                + FIRST_CLEANUP_DELAY, AlarmManager.INTERVAL_DAY, PendingIntent.getBroadcast(appContext, 0, i, 0));
+        Log.i(TAG, "Database cleanup scheduled");
+    }
+    
     /**
      * Internal thread for executing database cleanup.
      * @author Pixmob
@@ -62,18 +118,45 @@ public class DatabaseCleanup extends BroadcastReceiver {
         }
         
         private void cleanupDatabase() throws Exception {
+            final long start = SystemClock.elapsedRealtime();
+            final DatabaseMaintenance maintenance = new DatabaseMaintenance(context);
+            
+            // Months older than the live period are moved to compressed
+            // archive segments.
             final Calendar cal = Calendar.getInstance();
-            cal.add(Calendar.MONTH, -1);
+            cal.add(Calendar.MONTH, -LIVE_MONTHS);
+            Log.i(TAG, "Archiving events older than " + cal.getTime());
+            int archivedEvents = 0;
+            try {
+                archivedEvents = maintenance.archiveEvents(cal.getTimeInMillis());
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to archive events", e);
+            }
             
+            cal.add(Calendar.MONTH, LIVE_MONTHS - ARCHIVE_MONTHS);
             Log.i(TAG, "Deleting events older than " + cal.getTime());
-            
-            // Delete oldest events.
             final long timestampLimit = cal.getTimeInMillis();
-            final int deletedEvents = context.getContentResolver().delete(
-                Events.CONTENT_URI, Events.TIMESTAMP + "<?",
-                new String[] { String.valueOf(timestampLimit) });
+            final int deletedSegments = maintenance.deleteArchivedEvents(timestampLimit);
+            
+            // Events which could not be archived are deleted in small chunks:
+            // partitions holding older events only are dropped.
+            final ContentResolver cr = context.getContentResolver();
+            int deletedEvents = 0;
+            int deleted;
+            while ((deleted = cr.delete(Events.buildRangeUri(timestampLimit, CLEANUP_CHUNK_SIZE), null,
+                null)) != 0) {
+                deletedEvents += deleted;
+                Thread.sleep(CLEANUP_CHUNK_DELAY);
+            }
+            
+            // Free pages are given back to the file system when the
+            // write-ahead log is copied back into the database.
+            final long reclaimedBytes = maintenance.vacuum();
+            maintenance.checkpoint();
             
-            Log.i(TAG, deletedEvents + " events deleted");
+            Log.i(TAG, archivedEvents + " events archived, " + deletedEvents + " events and " + deletedSegments
+                    + " archive segments deleted, " + reclaimedBytes + " bytes reclaimed in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
         }
     }
 }
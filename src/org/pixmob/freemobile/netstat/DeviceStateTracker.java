@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat;
+
+import android.content.Intent;
+import android.os.BatteryManager;
+
+/**
+ * Keep track of the device state, as reported by system broadcasts. The state
+ * is updated in place, and reading it does not require any call to a system
+ * service. This class is not thread-safe: an instance must only be used from
+ * the main thread.
+ * @author Pixmob
+ */
+class DeviceStateTracker {
+    private boolean screenOn;
+    private int batteryLevel = -1;
+    private int batteryScale;
+    private boolean pluggedIn;
+    private Boolean wifiConnected;
+    private Boolean mobileConnected;
+    private String mobileOperator;
+    private boolean powerOn = true;
+
+    public void setScreenOn(boolean screenOn) {
+        this.screenOn = screenOn;
+    }
+
+    /**
+     * Update battery state from an {@link Intent#ACTION_BATTERY_CHANGED}
+     * intent.
+     */
+    public void setBatteryState(Intent i) {
+        batteryLevel = i.getIntExtra(BatteryManager.EXTRA_LEVEL, 0);
+        batteryScale = i.getIntExtra(BatteryManager.EXTRA_SCALE, 0);
+        pluggedIn = i.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Update Wi-Fi state.
+     * @return <code>true</code> if the state was updated
+     */
+    public boolean setWifiConnected(boolean wifiConnected) {
+        if (this.wifiConnected != null && this.wifiConnected.booleanValue() == wifiConnected) {
+            return false;
+        }
+        this.wifiConnected = wifiConnected;
+        return true;
+    }
+
+    /**
+     * Update mobile network state.
+     * @return <code>true</code> if the state was updated
+     */
+    public boolean setMobileNetwork(boolean mobileConnected, String mobileOperator) {
+        if (this.mobileConnected != null && this.mobileOperator != null
+                && this.mobileConnected.booleanValue() == mobileConnected
+                && this.mobileOperator.equals(mobileOperator)) {
+            return false;
+        }
+        this.mobileConnected = mobileConnected;
+        this.mobileOperator = mobileOperator;
+        return true;
+    }
+
+    public void setPowerOn(boolean powerOn) {
+        this.powerOn = powerOn;
+    }
+
+    public boolean isPowerOn() {
+        return powerOn;
+    }
+
+    public boolean isPluggedIn() {
+        return pluggedIn;
+    }
+
+    /**
+     * Get the battery level, as a percentage.
+     */
+    public int getBatteryLevel() {
+        if (batteryLevel < 0 || batteryScale == 0) {
+            return 100;
+        }
+        return (int) Math.round(batteryLevel * 100d / batteryScale);
+    }
+
+    /**
+     * Fill an event with the current device state.
+     */
+    public void fill(Event e) {
+        e.screenOn = screenOn;
+        e.batteryLevel = getBatteryLevel();
+        e.wifiConnected = Boolean.TRUE.equals(wifiConnected);
+        e.mobileConnected = powerOn ? Boolean.TRUE.equals(mobileConnected) : false;
+        e.mobileOperator = mobileOperator;
+        e.powerOn = powerOn;
+    }
+}
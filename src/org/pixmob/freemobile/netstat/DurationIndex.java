@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat;
+
+import org.pixmob.freemobile.netstat.content.EventStore;
+
+/**
+ * Index of cumulative durations over events, for computing durations in any
+ * time range without reading events again. For each event where categories
+ * change, the index holds the time spent in each category from the first
+ * event: durations in a range are found with two binary searches and a
+ * subtraction, and intervals crossing the range bounds are added separately.
+ * Events which do not change categories, such as battery level changes, only
+ * extend the last interval: memory usage depends on the number of state
+ * changes.
+ * <p>
+ * A single instance is shared in the application process: see
+ * {@link EventStore#getDurationIndex()}. The index is filled when it is
+ * updated: only events newer than the last indexed event are read, and arrays
+ * grow with spare capacity. Events older than the indexed time range are
+ * dropped when the range start moves forward. The index is built again when
+ * existing events were updated or deleted, or when the range start moves
+ * before the first indexed event. This class is thread-safe: callers synchronize on the index in
+ * order to query durations right after an update.
+ * @author Pixmob
+ */
+public class DurationIndex {
+    public static final int CATEGORY_ORANGE = 1;
+    public static final int CATEGORY_FREE_MOBILE = 2;
+    public static final int CATEGORY_WIFI = 4;
+    public static final int CATEGORY_SCREEN_ON = 8;
+    private static final int STATE_FLAGS = Event.FLAG_SCREEN_ON | Event.FLAG_WIFI_CONNECTED
+            | Event.FLAG_MOBILE_CONNECTED;
+    private long from;
+    private int count;
+    private long[] timestamps = new long[64];
+    /**
+     * Categories of the interval ending with each event.
+     */
+    private byte[] categories = new byte[64];
+    private long[] orangeTimes = new long[64];
+    private long[] freeMobileTimes = new long[64];
+    private long[] wifiTimes = new long[64];
+    private long[] screenOnTimes = new long[64];
+    private int lastFlags;
+    private String lastOperator;
+    private boolean initialized;
+    private int changeCount;
+    private final EventStore.Visitor visitor = new EventStore.Visitor() {
+        @Override
+        public boolean visit(long timestamp, int flags, String mobileOperator, int batteryLevel) {
+            add(timestamp, flags, mobileOperator);
+            return true;
+        }
+    };
+
+    /**
+     * Add events inserted since the last update to this index. Every event is
+     * read again if existing events were updated or deleted.
+     * @param from start of the indexed time (inclusive): events are indexed
+     *            from the last event before this time
+     */
+    public synchronized void update(EventStore store, long from) {
+        // Read the change counter first: changes made while events are read
+        // are detected by the next update.
+        final int currentChangeCount = store.getChangeCount();
+        // The index covers any time after the first indexed event: the start
+        // may move backward a little without reading events again.
+        final boolean extended = from < this.from && (count == 0 || from < timestamps[0]);
+        if (!initialized || currentChangeCount != changeCount || extended) {
+            initialized = true;
+            changeCount = currentChangeCount;
+            this.from = from;
+            count = 0;
+            final Event e = Event.obtain();
+            try {
+                if (store.readLastEvent(from, e)) {
+                    add(e.timestamp, e.flags(), e.mobileOperator);
+                }
+            } finally {
+                e.recycle();
+            }
+        } else if (from > this.from) {
+            this.from = from;
+            trim(from);
+        }
+        store.visitEvents(count == 0 ? from : timestamps[count - 1] + 1, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Get the categories of the interval between two consecutive events.
+     * Intervals follow the rules used for state intervals: the state of an
+     * interval is the state found at both ends, and the interval before a
+     * device boot is ignored.
+     * @param lastFlags flags of the event starting the interval
+     * @param lastOperator mobile operator of the event starting the interval
+     * @param flags flags of the event ending the interval
+     * @param op mobile operator of the event ending the interval
+     * @return <code>CATEGORY_*</code> values
+     */
+    public static int getCategories(int lastFlags, String lastOperator, int flags, String op) {
+        if ((flags & Event.FLAG_POWER_ON) != 0 && (lastFlags & Event.FLAG_POWER_ON) == 0) {
+            return 0;
+        }
+        int categories = 0;
+        if (op != null && op.equals(lastOperator)) {
+            final MobileOperator mobileOperator = MobileOperator.fromString(op);
+            if (MobileOperator.ORANGE.equals(mobileOperator)) {
+                categories |= CATEGORY_ORANGE;
+            } else if (MobileOperator.FREE_MOBILE.equals(mobileOperator)) {
+                categories |= CATEGORY_FREE_MOBILE;
+            }
+        }
+        final int intervalFlags = lastFlags & flags & STATE_FLAGS;
+        if ((intervalFlags & Event.FLAG_WIFI_CONNECTED) != 0) {
+            categories |= CATEGORY_WIFI;
+        }
+        if ((intervalFlags & Event.FLAG_SCREEN_ON) != 0) {
+            categories |= CATEGORY_SCREEN_ON;
+        }
+        return categories;
+    }
+
+    /**
+     * Check if this index can compute durations in a time range. Events
+     * inserted after the last update are not included: the range must end
+     * before the last indexed event.
+     */
+    public synchronized boolean covers(long from, long to) {
+        return count != 0 && (from >= timestamps[0] || from >= this.from) && to <= timestamps[count - 1];
+    }
+
+    /**
+     * Get the start of the indexed time, as set by the last update.
+     * @return {@link Long#MAX_VALUE} if this index was never updated
+     */
+    public synchronized long getStart() {
+        return initialized ? from : Long.MAX_VALUE;
+    }
+
+    /**
+     * Get the time of the last indexed event.
+     * @return <code>-1</code> if there is no indexed event
+     */
+    public synchronized long getLastTimestamp() {
+        return count == 0 ? -1 : timestamps[count - 1];
+    }
+
+    /**
+     * Compute durations in a time range. The battery level is not set.
+     * @param from range start (inclusive)
+     * @param to range end (exclusive)
+     */
+    public synchronized void query(long from, long to, EventStore.Totals totals) {
+        totals.orangeTime = 0;
+        totals.freeMobileTime = 0;
+        totals.wifiTime = 0;
+        totals.screenOnTime = 0;
+        if (from >= to || count == 0) {
+            return;
+        }
+
+        // First event in the range, and last event before the range end.
+        final int first = indexOf(from);
+        final int last = indexOf(to) - 1;
+        if (first > last) {
+            // The range is inside an interval.
+            addPartial(first, from, to, totals);
+            return;
+        }
+        totals.orangeTime = orangeTimes[last] - orangeTimes[first];
+        totals.freeMobileTime = freeMobileTimes[last] - freeMobileTimes[first];
+        totals.wifiTime = wifiTimes[last] - wifiTimes[first];
+        totals.screenOnTime = screenOnTimes[last] - screenOnTimes[first];
+        addPartial(first, from, to, totals);
+        addPartial(last + 1, from, to, totals);
+    }
+
+    /**
+     * Add an event after the last indexed event.
+     */
+    private void add(long timestamp, int flags, String mobileOperator) {
+        if (count > 1) {
+            final int c = getCategories(lastFlags, lastOperator, flags, mobileOperator);
+            if (c == categories[count - 1]) {
+                // The last interval is extended.
+                extend(count - 1, c, timestamp - timestamps[count - 1]);
+                timestamps[count - 1] = timestamp;
+                lastFlags = flags;
+                lastOperator = mobileOperator;
+                return;
+            }
+        }
+        if (count == timestamps.length) {
+            grow(count * 2);
+        }
+        if (count == 0) {
+            categories[0] = 0;
+            orangeTimes[0] = 0;
+            freeMobileTimes[0] = 0;
+            wifiTimes[0] = 0;
+            screenOnTimes[0] = 0;
+        } else {
+            categories[count] = (byte) getCategories(lastFlags, lastOperator, flags, mobileOperator);
+            orangeTimes[count] = orangeTimes[count - 1];
+            freeMobileTimes[count] = freeMobileTimes[count - 1];
+            wifiTimes[count] = wifiTimes[count - 1];
+            screenOnTimes[count] = screenOnTimes[count - 1];
+            extend(count, categories[count], timestamp - timestamps[count - 1]);
+        }
+        timestamps[count++] = timestamp;
+        lastFlags = flags;
+        lastOperator = mobileOperator;
+    }
+
+    /**
+     * Add time to the cumulative durations of an event.
+     */
+    private void extend(int i, int c, long dt) {
+        if ((c & CATEGORY_ORANGE) != 0) {
+            orangeTimes[i] += dt;
+        }
+        if ((c & CATEGORY_FREE_MOBILE) != 0) {
+            freeMobileTimes[i] += dt;
+        }
+        if ((c & CATEGORY_WIFI) != 0) {
+            wifiTimes[i] += dt;
+        }
+        if ((c & CATEGORY_SCREEN_ON) != 0) {
+            screenOnTimes[i] += dt;
+        }
+    }
+
+    /**
+     * Drop events which are not needed for computing durations from a given
+     * time: the last event before this time is kept. Arrays are only moved
+     * when at least half of the events are dropped.
+     */
+    private void trim(long from) {
+        final int first = indexOf(from + 1) - 1;
+        if (first <= 0 || first < count / 2) {
+            return;
+        }
+        count -= first;
+        System.arraycopy(timestamps, first, timestamps, 0, count);
+        System.arraycopy(categories, first, categories, 0, count);
+        System.arraycopy(orangeTimes, first, orangeTimes, 0, count);
+        System.arraycopy(freeMobileTimes, first, freeMobileTimes, 0, count);
+        System.arraycopy(wifiTimes, first, wifiTimes, 0, count);
+        System.arraycopy(screenOnTimes, first, screenOnTimes, 0, count);
+    }
+
+    private void grow(int capacity) {
+        timestamps = grow(timestamps, capacity, count);
+        orangeTimes = grow(orangeTimes, capacity, count);
+        freeMobileTimes = grow(freeMobileTimes, capacity, count);
+        wifiTimes = grow(wifiTimes, capacity, count);
+        screenOnTimes = grow(screenOnTimes, capacity, count);
+        final byte[] newCategories = new byte[capacity];
+        System.arraycopy(categories, 0, newCategories, 0, count);
+        categories = newCategories;
+    }
+
+    private static long[] grow(long[] array, int capacity, int count) {
+        final long[] newArray = new long[capacity];
+        System.arraycopy(array, 0, newArray, 0, count);
+        return newArray;
+    }
+
+    /**
+     * Add the part of an interval inside a time range.
+     * @param i index of the event ending the interval
+     */
+    private void addPartial(int i, long from, long to, EventStore.Totals totals) {
+        if (i < 1 || i >= count) {
+            return;
+        }
+        final long dt = Math.min(timestamps[i], to) - Math.max(timestamps[i - 1], from);
+        if (dt <= 0) {
+            return;
+        }
+        final int c = categories[i];
+        if ((c & CATEGORY_ORANGE) != 0) {
+            totals.orangeTime += dt;
+        }
+        if ((c & CATEGORY_FREE_MOBILE) != 0) {
+            totals.freeMobileTime += dt;
+        }
+        if ((c & CATEGORY_WIFI) != 0) {
+            totals.wifiTime += dt;
+        }
+        if ((c & CATEGORY_SCREEN_ON) != 0) {
+            totals.screenOnTime += dt;
+        }
+    }
+
+    /**
+     * Get the index of the first event at or after a given time.
+     */
+    private int indexOf(long timestamp) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (timestamps[mid] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DurationIndex[count=" + count + "]";
+    }
+}
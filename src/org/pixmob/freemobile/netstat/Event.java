@@ -18,6 +18,7 @@ package org.pixmob.freemobile.netstat;
 import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
 
 import android.content.ContentValues;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.text.format.DateFormat;
 
@@ -26,6 +27,31 @@ import android.text.format.DateFormat;
  * @author Pixmob
  */
 public class Event {
+    public static final int FLAG_SCREEN_ON = 1;
+    public static final int FLAG_WIFI_CONNECTED = 2;
+    public static final int FLAG_MOBILE_CONNECTED = 4;
+    public static final int FLAG_POWER_ON = 8;
+    /**
+     * Maximum number of recycled instances.
+     */
+    private static final int MAX_POOL_SIZE = 64;
+    private static final Object POOL_LOCK = new Object();
+    private static Event pool;
+    private static int poolSize;
+    private Event next;
+    /**
+     * Mobile operator identifiers read from the database. Since there are
+     * only a few different values, the same instances are shared by every
+     * event.
+     */
+    private static final String[] OPERATOR_CACHE = new String[8];
+    private static final CharArrayBuffer OPERATOR_BUFFER = new CharArrayBuffer(16);
+    private static int operatorCacheIndex;
+    /**
+     * Sequence number of this event in the event journal.
+     */
+    int journalSequence;
+
     public long timestamp;
     public boolean screenOn;
     public boolean wifiConnected;
@@ -43,10 +69,7 @@ public class Event {
         screenOn = c.getInt(c.getColumnIndexOrThrow(Events.SCREEN_ON)) == 1;
         wifiConnected = c.getInt(c.getColumnIndexOrThrow(Events.WIFI_CONNECTED)) == 1;
         mobileConnected = c.getInt(c.getColumnIndexOrThrow(Events.MOBILE_CONNECTED)) == 1;
-        mobileOperator = c.getString(c.getColumnIndexOrThrow(Events.MOBILE_OPERATOR));
-        if (mobileOperator != null) {
-            mobileOperator = mobileOperator.intern();
-        }
+        mobileOperator = readOperator(c, c.getColumnIndexOrThrow(Events.MOBILE_OPERATOR));
         batteryLevel = c.getInt(c.getColumnIndexOrThrow(Events.BATTERY_LEVEL));
         powerOn = c.getInt(c.getColumnIndexOrThrow(Events.POWER_ON)) == 1;
     }
@@ -64,6 +87,143 @@ public class Event {
         values.put(Events.POWER_ON, powerOn ? 1 : 0);
     }
 
+    /**
+     * Get an instance from the pool of recycled instances, or create a new
+     * one if the pool is empty.
+     */
+    public static Event obtain() {
+        synchronized (POOL_LOCK) {
+            if (pool != null) {
+                final Event e = pool;
+                pool = e.next;
+                e.next = null;
+                --poolSize;
+                return e;
+            }
+        }
+        return new Event();
+    }
+
+    /**
+     * Return this instance to the pool. This instance must not be used after
+     * this method is called.
+     */
+    public void recycle() {
+        timestamp = 0;
+        screenOn = false;
+        wifiConnected = false;
+        mobileConnected = false;
+        mobileOperator = null;
+        batteryLevel = 0;
+        powerOn = false;
+        journalSequence = 0;
+
+        synchronized (POOL_LOCK) {
+            if (poolSize < MAX_POOL_SIZE) {
+                next = pool;
+                pool = this;
+                ++poolSize;
+            }
+        }
+    }
+
+    /**
+     * Get a value packing every field of this instance, except the timestamp.
+     * Two events with the same state have the same signature.
+     */
+    public long signature() {
+        return (long) operatorCode(mobileOperator) << 32 | (batteryLevel & 0xff) << 8 | flags();
+    }
+
+    /**
+     * Pack boolean states of this instance with the <code>FLAG_*</code>
+     * values.
+     */
+    public int flags() {
+        int flags = 0;
+        if (screenOn) {
+            flags |= FLAG_SCREEN_ON;
+        }
+        if (wifiConnected) {
+            flags |= FLAG_WIFI_CONNECTED;
+        }
+        if (mobileConnected) {
+            flags |= FLAG_MOBILE_CONNECTED;
+        }
+        if (powerOn) {
+            flags |= FLAG_POWER_ON;
+        }
+        return flags;
+    }
+
+    /**
+     * Check if an event has the same state than this instance: only
+     * timestamps may be different.
+     */
+    public boolean hasSameState(Event e) {
+        return e != null && signature() == e.signature();
+    }
+
+    /**
+     * Read a mobile operator identifier from a cursor. A cached instance is
+     * returned if the same value was read before: no object is allocated.
+     */
+    private static String readOperator(Cursor c, int column) {
+        if (c.isNull(column)) {
+            return null;
+        }
+        synchronized (OPERATOR_CACHE) {
+            final CharArrayBuffer buf = OPERATOR_BUFFER;
+            c.copyStringToBuffer(column, buf);
+            for (final String op : OPERATOR_CACHE) {
+                if (op != null && contentEquals(op, buf)) {
+                    return op;
+                }
+            }
+            final String op = new String(buf.data, 0, buf.sizeCopied);
+            OPERATOR_CACHE[operatorCacheIndex] = op;
+            operatorCacheIndex = (operatorCacheIndex + 1) % OPERATOR_CACHE.length;
+            return op;
+        }
+    }
+
+    private static boolean contentEquals(String s, CharArrayBuffer buf) {
+        final int len = buf.sizeCopied;
+        if (s.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            if (s.charAt(i) != buf.data[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get a numeric code for a mobile operator identifier, without allocating
+     * any object. A MCC+MNC identifier is only made of digits: its code is the
+     * numeric value plus 1. The code 0 is used for a <code>null</code> value.
+     */
+    private static int operatorCode(String mobileOperator) {
+        if (mobileOperator == null) {
+            return 0;
+        }
+        final int len = mobileOperator.length();
+        if (len == 0 || len > 9) {
+            return mobileOperator.hashCode() | 0x80000000;
+        }
+        int code = 0;
+        for (int i = 0; i < len; ++i) {
+            final char c = mobileOperator.charAt(i);
+            if (c < '0' || c > '9') {
+                return mobileOperator.hashCode() | 0x80000000;
+            }
+            code = code * 10 + c - '0';
+        }
+        return code + 1;
+    }
+
     @Override
     public String toString() {
         return "Event[timestamp=" + DateFormat.format("dd/MM/yyyy hh:mm:ss", timestamp) + "; screen="
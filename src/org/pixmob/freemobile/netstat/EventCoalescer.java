@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Filter events before they are captured. An event is dropped if its state is
+ * the same than the previous event. Events are also debounced: when several
+ * events are received within a time window, only the last one is kept: only
+ * events which differ in battery level are coalesced. Any change in the
+ * persisted state (screen, Wi-Fi, mobile network, mobile operator, power) or
+ * in the plug state is never delayed. This class is not
+ * thread-safe: an instance must only be used from the thread the
+ * {@link Handler} is bound to.
+ * @author Pixmob
+ */
+class EventCoalescer implements Runnable {
+    private final Handler handler;
+    private final long window;
+    private final OnEventListener listener;
+    private boolean hasLast;
+    private long lastSignature;
+    private int lastFlags;
+    private String lastMobileOperator;
+    private boolean lastPluggedIn;
+    private long lastEmitTime = -1;
+    private Event held;
+    private boolean scheduled;
+    private long receivedCount;
+    private long filteredCount;
+    private long coalescedCount;
+
+    /**
+     * Create a new instance.
+     * @param handler handler used for emitting delayed events
+     * @param window debounce time window (in milliseconds)
+     * @param listener listener receiving emitted events
+     */
+    public EventCoalescer(final Handler handler, final long window, final OnEventListener listener) {
+        this.handler = handler;
+        this.window = window;
+        this.listener = listener;
+    }
+
+    /**
+     * Submit a new event. The event must not be used after this call, since
+     * it may be recycled.
+     * @param pluggedIn <code>true</code> if the device is plugged in
+     */
+    public void submit(Event e, boolean pluggedIn) {
+        ++receivedCount;
+
+        final long signature = e.signature();
+        final int flags = e.flags();
+        final boolean significant =
+                !hasLast || flags != lastFlags || pluggedIn != lastPluggedIn
+                        || !(e.mobileOperator == null ? lastMobileOperator == null : e.mobileOperator
+                                .equals(lastMobileOperator));
+        if (!significant && signature == lastSignature) {
+            // Nothing has changed since the last event.
+            ++filteredCount;
+            e.recycle();
+            return;
+        }
+
+        hasLast = true;
+        lastSignature = signature;
+        lastFlags = flags;
+        lastMobileOperator = e.mobileOperator;
+        lastPluggedIn = pluggedIn;
+
+        final long now = SystemClock.uptimeMillis();
+        if (significant) {
+            // The held event is a real state: it is emitted before this
+            // event.
+            flush();
+            emit(e, now);
+        } else if (lastEmitTime == -1 || now - lastEmitTime >= window) {
+            emit(e, now);
+        } else {
+            // Only the battery level changed: keep this event until the end
+            // of the time window.
+            if (held != null) {
+                ++coalescedCount;
+                held.recycle();
+            }
+            held = e;
+            if (!scheduled) {
+                scheduled = true;
+                handler.postDelayed(this, lastEmitTime + window - now);
+            }
+        }
+    }
+
+    /**
+     * Emit the held event right now, if any.
+     */
+    public void flush() {
+        if (scheduled) {
+            handler.removeCallbacks(this);
+        }
+        run();
+    }
+
+    @Override
+    public void run() {
+        scheduled = false;
+        if (held != null) {
+            final Event e = held;
+            held = null;
+            emit(e, SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * Get the number of submitted events.
+     */
+    public long getReceivedCount() {
+        return receivedCount;
+    }
+
+    /**
+     * Get the number of events which were dropped since nothing had changed.
+     */
+    public long getFilteredCount() {
+        return filteredCount;
+    }
+
+    /**
+     * Get the number of events which were replaced by a newer event within a
+     * time window.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    private void emit(Event e, long now) {
+        lastEmitTime = now;
+        listener.onEvent(e);
+    }
+
+    /**
+     * Listener receiving events emitted by an {@link EventCoalescer}.
+     * @author Pixmob
+     */
+    public interface OnEventListener {
+        void onEvent(Event e);
+    }
+}
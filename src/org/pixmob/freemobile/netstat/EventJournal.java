@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import org.pixmob.freemobile.netstat.util.IOUtils;
+
+/**
+ * Append-only event journal, stored in a memory-mapped file. Captured events
+ * are appended to this journal before they are inserted into the database:
+ * events which were not inserted when the application was stopped are replayed
+ * at startup.
+ * <p>
+ * The journal is a ring of fixed-size records. Each record has a sequence
+ * number and a checksum, so that records partially written are ignored. The
+ * header stores the sequence number of the last record inserted into the
+ * database. Records are appended by a single thread, and marked as applied by
+ * another single thread.
+ * @author Pixmob
+ */
+class EventJournal {
+    private static final int MAGIC = 0x4e534a31;
+    private static final int HEADER_SIZE = 16;
+    private static final int HEADER_APPLIED_OFFSET = 4;
+    private static final int RECORD_SIZE = 32;
+    private static final int RECORD_CHECKSUM_OFFSET = RECORD_SIZE - 4;
+    private static final int MAX_OPERATOR_LENGTH = 13;
+    private static final int FLAG_SCREEN_ON = 1;
+    private static final int FLAG_WIFI_CONNECTED = 2;
+    private static final int FLAG_MOBILE_CONNECTED = 4;
+    private static final int FLAG_POWER_ON = 8;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final byte[] appendRecord = new byte[RECORD_SIZE];
+    private final CRC32 appendChecksum = new CRC32();
+    private final byte[] readRecord = new byte[RECORD_SIZE];
+    private final CRC32 readChecksum = new CRC32();
+    private final int replayFrom;
+    private final int replayTo;
+    private int nextSequence;
+    private volatile int appliedSequence;
+
+    /**
+     * Open a journal file. The file is created if it does not exist.
+     * @param capacity maximum number of records which are not applied
+     */
+    public EventJournal(final File path, final int capacity) throws IOException {
+        this.capacity = capacity;
+        file = new RandomAccessFile(path, "rw");
+        try {
+            final int size = HEADER_SIZE + capacity * RECORD_SIZE;
+            file.setLength(size);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            IOUtils.close(file);
+            throw e;
+        }
+
+        if (buffer.getInt(0) != MAGIC) {
+            // This is a new journal.
+            for (int i = 0; i < buffer.capacity(); ++i) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.putInt(0, MAGIC);
+        }
+        appliedSequence = buffer.getInt(HEADER_APPLIED_OFFSET);
+
+        // Look for records which were not applied.
+        int lastSequence = appliedSequence;
+        for (int i = 0; i < capacity; ++i) {
+            final int seq = readSequence(i);
+            if (seq > lastSequence) {
+                lastSequence = seq;
+            }
+        }
+        replayFrom = appliedSequence + 1;
+        replayTo = lastSequence;
+        nextSequence = lastSequence + 1;
+    }
+
+    /**
+     * Append an event to this journal. This method must only be called from
+     * the appending thread.
+     * @return the record sequence number, or <code>0</code> if the journal is
+     *         full
+     */
+    public int append(Event e) {
+        final int seq = nextSequence;
+        if (seq - appliedSequence > capacity) {
+            // Pending records would be overwritten.
+            return 0;
+        }
+        ++nextSequence;
+
+        final byte[] r = appendRecord;
+        putInt(r, 0, seq);
+        final long t = e.timestamp;
+        for (int i = 0; i < 8; ++i) {
+            r[4 + i] = (byte) (t >>> (56 - i * 8));
+        }
+        int flags = 0;
+        if (e.screenOn) {
+            flags |= FLAG_SCREEN_ON;
+        }
+        if (e.wifiConnected) {
+            flags |= FLAG_WIFI_CONNECTED;
+        }
+        if (e.mobileConnected) {
+            flags |= FLAG_MOBILE_CONNECTED;
+        }
+        if (e.powerOn) {
+            flags |= FLAG_POWER_ON;
+        }
+        r[12] = (byte) flags;
+        r[13] = (byte) e.batteryLevel;
+        final String op = e.mobileOperator;
+        final int opLen = op == null ? 0 : Math.min(op.length(), MAX_OPERATOR_LENGTH);
+        r[14] = (byte) (op == null ? -1 : opLen);
+        for (int i = 0; i < MAX_OPERATOR_LENGTH; ++i) {
+            r[15 + i] = i < opLen ? (byte) op.charAt(i) : 0;
+        }
+        appendChecksum.reset();
+        appendChecksum.update(r, 0, RECORD_CHECKSUM_OFFSET);
+        putInt(r, RECORD_CHECKSUM_OFFSET, (int) appendChecksum.getValue());
+
+        // The sequence number is written last, with the checksum: a record
+        // is only valid once it is fully written.
+        final int offset = recordOffset(seq);
+        for (int i = 4; i < RECORD_SIZE; ++i) {
+            buffer.put(offset + i, r[i]);
+        }
+        buffer.putInt(offset, seq);
+
+        e.journalSequence = seq;
+        return seq;
+    }
+
+    /**
+     * Write pending changes to the storage. This method must only be called
+     * from the appending thread.
+     */
+    public void sync() {
+        buffer.force();
+    }
+
+    /**
+     * Mark every record up to a sequence number as applied. This method must
+     * only be called from the applying thread.
+     */
+    public void setApplied(int seq) {
+        if (seq > appliedSequence) {
+            buffer.putInt(HEADER_APPLIED_OFFSET, seq);
+            appliedSequence = seq;
+        }
+    }
+
+    /**
+     * Get the sequence number of the first record to replay.
+     */
+    public int getReplayFrom() {
+        return replayFrom;
+    }
+
+    /**
+     * Get the sequence number of the last record to replay.
+     */
+    public int getReplayTo() {
+        return replayTo;
+    }
+
+    /**
+     * Read a record which is not applied yet: a record to replay, or a record
+     * appended since this journal was opened. This method must only be called
+     * from the applying thread.
+     * @return <code>false</code> if this record is not valid
+     */
+    public boolean read(int seq, Event e) {
+        if (seq <= appliedSequence || readSequence(seq % capacity) != seq) {
+            return false;
+        }
+        final byte[] r = readRecord;
+        long t = 0;
+        for (int i = 0; i < 8; ++i) {
+            t = t << 8 | r[4 + i] & 0xff;
+        }
+        e.timestamp = t;
+        final int flags = r[12];
+        e.screenOn = (flags & FLAG_SCREEN_ON) != 0;
+        e.wifiConnected = (flags & FLAG_WIFI_CONNECTED) != 0;
+        e.mobileConnected = (flags & FLAG_MOBILE_CONNECTED) != 0;
+        e.powerOn = (flags & FLAG_POWER_ON) != 0;
+        e.batteryLevel = r[13] & 0xff;
+        final int opLen = r[14];
+        if (opLen < 0) {
+            e.mobileOperator = null;
+        } else {
+            final char[] op = new char[opLen];
+            for (int i = 0; i < opLen; ++i) {
+                op[i] = (char) (r[15 + i] & 0xff);
+            }
+            e.mobileOperator = new String(op).intern();
+        }
+        e.journalSequence = seq;
+        return true;
+    }
+
+    /**
+     * Close this journal.
+     */
+    public void close() {
+        IOUtils.close(file);
+    }
+
+    /**
+     * Read a record into the read buffer.
+     * @return the record sequence number, or <code>0</code> if the record is
+     *         not valid
+     */
+    private int readSequence(int index) {
+        final int offset = HEADER_SIZE + index * RECORD_SIZE;
+        final byte[] r = readRecord;
+        for (int i = 0; i < RECORD_SIZE; ++i) {
+            r[i] = buffer.get(offset + i);
+        }
+        readChecksum.reset();
+        readChecksum.update(r, 0, RECORD_CHECKSUM_OFFSET);
+        if ((int) readChecksum.getValue() != getInt(r, RECORD_CHECKSUM_OFFSET)) {
+            return 0;
+        }
+        final int seq = getInt(r, 0);
+        return seq > 0 && recordOffset(seq) == offset ? seq : 0;
+    }
+
+    private int recordOffset(int seq) {
+        return HEADER_SIZE + (seq % capacity) * RECORD_SIZE;
+    }
+
+    private static void putInt(byte[] b, int offset, int v) {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+
+    private static int getInt(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8
+                | b[offset + 3] & 0xff;
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free ring buffer for passing events from a single producer thread to a
+ * single consumer thread. The producer never blocks: when the buffer is full,
+ * events are kept aside in a small overflow area, and published as soon as the
+ * consumer makes some room.
+ * <p>
+ * An event kept aside is only replaced by a newer event sharing the same
+ * state, so that every state transition is published. When the overflow area
+ * is full of transitions, a transient state (a state which is left for the
+ * state preceding it) is dropped first; if there is none, the oldest event
+ * kept aside is dropped, so that the current state is always published.
+ * <p>
+ * Two overflow areas are allocated with the buffer: while the consumer reads
+ * events from one area, the producer keeps events aside in the other one.
+ * @author Pixmob
+ */
+class EventRingBuffer {
+    /**
+     * Maximum number of events kept aside when the buffer is full.
+     */
+    private static final int OVERFLOW_CAPACITY = 4;
+    private final Event[] buffer;
+    private final int mask;
+    /**
+     * Index of the next event to read. Only updated by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Index of the next event to write. Only updated by the producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Events which could not be published because the buffer was full. The
+     * thread which takes these events from this reference owns them until it
+     * sets them back.
+     */
+    private final AtomicReference<Overflow> overflow = new AtomicReference<Overflow>();
+    /**
+     * Empty overflow area given back by the consumer.
+     */
+    private final AtomicReference<Overflow> returnedOverflow = new AtomicReference<Overflow>();
+    /**
+     * Empty overflow area. Only used by the producer.
+     */
+    private Overflow freeOverflow;
+    /**
+     * Events taken from the overflow area by the consumer, which are read
+     * after the buffer is read up to {@link Overflow#limit}. Only used by the
+     * consumer.
+     */
+    private Overflow consumerOverflow;
+    private volatile Thread consumer;
+    private volatile boolean closed;
+    private volatile long coalescedCount;
+    private volatile long droppedCount;
+
+    /**
+     * Create a new instance. The capacity must be a power of two.
+     */
+    public EventRingBuffer(final int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        buffer = new Event[capacity];
+        mask = capacity - 1;
+        freeOverflow = new Overflow();
+        returnedOverflow.set(new Overflow());
+    }
+
+    /**
+     * Add an event to this buffer. This method never blocks, and must only be
+     * called from the producer thread.
+     * @return <code>false</code> if a pending event was replaced or dropped
+     */
+    public boolean offer(Event e) {
+        // Publish the events which were kept aside first, in order to keep
+        // events ordered.
+        Overflow pending = overflow.getAndSet(null);
+        if (pending != null) {
+            while (pending.count != 0 && publish(pending.peek())) {
+                pending.remove();
+            }
+            if (pending.count == 0) {
+                freeOverflow = pending;
+                pending = null;
+            }
+        }
+
+        boolean accepted = true;
+        if (pending == null) {
+            if (!publish(e)) {
+                // The buffer is full: keep this event aside. An empty
+                // overflow area is always available, since the consumer
+                // holds at most one of them.
+                if (freeOverflow == null) {
+                    freeOverflow = returnedOverflow.getAndSet(null);
+                }
+                pending = freeOverflow;
+                freeOverflow = null;
+                pending.add(e);
+            }
+        } else {
+            // The buffer is still full.
+            final Event last = pending.peekLast();
+            if (last.hasSameState(e)) {
+                // Only the battery level changed: the newest event replaces
+                // the pending one.
+                pending.removeLast();
+                last.recycle();
+                coalescedCount++;
+            } else if (pending.count == OVERFLOW_CAPACITY) {
+                dropTransition(pending);
+                droppedCount++;
+            }
+            pending.add(e);
+            accepted = false;
+        }
+
+        if (pending != null) {
+            // Events in the buffer up to the current tail are older than the
+            // events kept aside, and events published later are newer.
+            pending.limit = tail.get();
+            overflow.set(pending);
+        }
+        signalConsumer();
+        return accepted;
+    }
+
+    /**
+     * Drop an event from a full overflow area, preserving as many state
+     * transitions as possible.
+     */
+    private static void dropTransition(Overflow pending) {
+        // A state which is left for the previous state is transient: dropping
+        // this event loses a single transition.
+        for (int i = 1; i < pending.count - 1; ++i) {
+            if (pending.get(i - 1).hasSameState(pending.get(i + 1))) {
+                pending.removeAt(i).recycle();
+                return;
+            }
+        }
+        pending.remove().recycle();
+    }
+
+    /**
+     * Get the next event, without blocking. This method must only be called
+     * from the consumer thread.
+     * @return <code>null</code> if this buffer is empty
+     */
+    public Event poll() {
+        final long h = head.get();
+        if (consumerOverflow != null && h == consumerOverflow.limit) {
+            // Every event published before the events kept aside was read.
+            final Event e = consumerOverflow.remove();
+            if (consumerOverflow.count == 0) {
+                returnedOverflow.set(consumerOverflow);
+                consumerOverflow = null;
+            }
+            return e;
+        }
+        if (h == tail.get()) {
+            // The buffer is empty: the producer may have kept events aside.
+            // The producer may also have published some of these events since
+            // the tail was read: these events are read first.
+            final Overflow pending = overflow.getAndSet(null);
+            if (pending == null) {
+                return null;
+            }
+            consumerOverflow = pending;
+            return poll();
+        }
+        final int i = (int) h & mask;
+        final Event e = buffer[i];
+        buffer[i] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    /**
+     * Wait for the next event.
+     * @return <code>null</code> if this buffer is closed and empty
+     */
+    public Event take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Wait for the next event, up to the specified wait time.
+     * @return <code>null</code> if the wait time elapsed, or if this buffer is
+     *         closed and empty
+     */
+    public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+        consumer = Thread.currentThread();
+        final long start = System.nanoTime();
+        final long timeoutNanos = unit.toNanos(timeout);
+        for (;;) {
+            final Event e = poll();
+            if (e != null) {
+                return e;
+            }
+            if (closed) {
+                // Check one last time for an event published before this
+                // buffer was closed.
+                return poll();
+            }
+            final long remaining = timeoutNanos - (System.nanoTime() - start);
+            if (remaining <= 0) {
+                return null;
+            }
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Close this buffer: the consumer is notified that no more events will be
+     * published.
+     */
+    public void close() {
+        closed = true;
+        signalConsumer();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Get the number of events which were replaced by an event with the same
+     * state.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Get the number of events which were dropped because the overflow area
+     * was full of state transitions.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private boolean publish(Event e) {
+        final long t = tail.get();
+        if (t - head.get() == buffer.length) {
+            return false;
+        }
+        buffer[(int) t & mask] = e;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    private void signalConsumer() {
+        final Thread t = consumer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Events kept aside, in order.
+     */
+    private static class Overflow {
+        private final Event[] events = new Event[OVERFLOW_CAPACITY];
+        private int first;
+        private int count;
+        /**
+         * Buffer index of the first event published after these events: the
+         * events in the buffer before this index are older.
+         */
+        private long limit;
+
+        public void add(Event e) {
+            events[(first + count++) % OVERFLOW_CAPACITY] = e;
+        }
+
+        public Event get(int i) {
+            return events[(first + i) % OVERFLOW_CAPACITY];
+        }
+
+        public Event peek() {
+            return events[first];
+        }
+
+        public Event peekLast() {
+            return get(count - 1);
+        }
+
+        public Event remove() {
+            final Event e = events[first];
+            events[first] = null;
+            first = (first + 1) % OVERFLOW_CAPACITY;
+            count--;
+            return e;
+        }
+
+        public Event removeLast() {
+            return removeAt(count - 1);
+        }
+
+        public Event removeAt(int i) {
+            final Event e = get(i);
+            for (int j = i; j < count - 1; ++j) {
+                events[(first + j) % OVERFLOW_CAPACITY] = get(j + 1);
+            }
+            events[(first + count - 1) % OVERFLOW_CAPACITY] = null;
+            count--;
+            return e;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat;
+
+/**
+ * Downsample state intervals to a fixed number of buckets, such as a bucket per
+ * pixel of a chart. Intervals are clipped to the time range, and an interval
+ * follows the previous one when they share the same state and are less than a
+ * bucket apart. At most one interval starts in each bucket: when several
+ * states are found in a bucket, the state which lasts longer is kept.
+ * Intervals are added one by one, in chronological order: memory usage only
+ * depends on the number of buckets, whatever the number of intervals. This
+ * class is not thread-safe.
+ * <p>
+ * The start of the last mobile connection is also computed from intervals
+ * before they are downsampled.
+ * @author Pixmob
+ */
+public class IntervalDownsampler {
+    private final long from;
+    private final long to;
+    private final int bucketCount;
+    private final long bucketDuration;
+    private final StateInterval[] intervals;
+    private int count;
+    private int lastBucket = -1;
+    private long connectionStart = -1;
+    private long connectionEnd = -1;
+
+    /**
+     * Create a new instance.
+     * @param from time range start (inclusive)
+     * @param to time range end (exclusive)
+     * @param bucketCount number of buckets
+     */
+    public IntervalDownsampler(final long from, final long to, final int bucketCount) {
+        this.from = from;
+        this.to = to;
+        this.bucketCount = Math.max(1, bucketCount);
+        bucketDuration = Math.max(1, (to - from) / this.bucketCount);
+        intervals = new StateInterval[this.bucketCount];
+    }
+
+    /**
+     * Add an interval. The interval is copied.
+     * @param si interval, starting after the previous interval
+     */
+    public void add(StateInterval si) {
+        if (si.mobileConnected && si.start == connectionEnd) {
+            connectionEnd = si.end;
+        } else if (si.mobileConnected) {
+            connectionStart = si.start;
+            connectionEnd = si.end;
+        } else {
+            connectionStart = -1;
+            connectionEnd = -1;
+        }
+
+        final long start = Math.max(si.start, from);
+        final long end = Math.min(si.end, to);
+        if (start >= end) {
+            return;
+        }
+
+        final StateInterval last = count == 0 ? null : intervals[count - 1];
+        if (last != null && hasSameState(last, si) && start - last.end < bucketDuration) {
+            last.end = Math.max(last.end, end);
+            return;
+        }
+        final int bucket = (int) ((start - from) * bucketCount / (to - from));
+        if (bucket == lastBucket) {
+            // An interval already starts in this bucket: the longest state is
+            // kept.
+            if (end - start > last.end - last.start) {
+                copyState(si, last);
+            }
+            last.end = Math.max(last.end, end);
+            return;
+        }
+
+        final StateInterval next = new StateInterval();
+        copyState(si, next);
+        next.start = start;
+        next.end = end;
+        intervals[count++] = next;
+        lastBucket = bucket;
+    }
+
+    /**
+     * Get downsampled intervals, in chronological order.
+     */
+    public StateInterval[] getIntervals() {
+        final StateInterval[] result = new StateInterval[count];
+        System.arraycopy(intervals, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Get the start of a mobile connection, from the connected intervals
+     * which were added last.
+     * @param end end of the connection: the time of the last event
+     * @return <code>-1</code> if the last added intervals were not connected
+     *         until this time
+     */
+    public long getConnectionStart(long end) {
+        return connectionEnd == end ? connectionStart : -1;
+    }
+
+    private static boolean hasSameState(StateInterval a, StateInterval b) {
+        return a.screenOn == b.screenOn && a.wifiConnected == b.wifiConnected
+                && a.mobileConnected == b.mobileConnected && a.powerOn == b.powerOn
+                && (a.mobileOperator == null ? b.mobileOperator == null : a.mobileOperator.equals(b.mobileOperator));
+    }
+
+    private static void copyState(StateInterval src, StateInterval dst) {
+        dst.screenOn = src.screenOn;
+        dst.wifiConnected = src.wifiConnected;
+        dst.mobileConnected = src.mobileConnected;
+        dst.mobileOperator = src.mobileOperator;
+        dst.powerOn = src.powerOn;
+    }
+}
@@ -29,8 +29,6 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -41,11 +39,12 @@ import android.graphics.BitmapFactory;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
-import android.os.BatteryManager;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.telephony.PhoneStateListener;
 import android.telephony.ServiceState;
@@ -54,12 +53,13 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseIntArray;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
-import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+import org.pixmob.freemobile.netstat.content.EventWriter;
 import org.pixmob.freemobile.netstat.util.IntentFactory;
 
 /**
@@ -68,7 +68,8 @@ import org.pixmob.freemobile.netstat.util.IntentFactory;
  * 
  * @author Pixmob
  */
-public class MonitorService extends Service implements OnSharedPreferenceChangeListener {
+public class MonitorService extends Service implements OnSharedPreferenceChangeListener,
+    EventCoalescer.OnEventListener {
     /**
      * Notification themes.
      */
@@ -78,15 +79,41 @@ public class MonitorService extends Service implements OnSharedPreferenceChangeL
      */
     private static final SparseIntArray NETWORK_TYPE_STRINGS = new SparseIntArray(8);
     /**
-     * Special data used for terminating the PendingInsert worker thread.
+     * Maximum number of events waiting to be inserted into the database. This value
+     * must be a power of two.
      */
-    private static final Event STOP_PENDING_CONTENT_MARKER = new Event();
+    private static final int PENDING_INSERT_CAPACITY = 16;
+    /**
+     * Maximum number of events written to the database in a single transaction.
+     */
+    private static final int PENDING_INSERT_BATCH_SIZE = 32;
+    /**
+     * Maximum age of a batch before it is written to the database (in milliseconds). Pending events are stored in the
+     * event journal while waiting.
+     */
+    private static final long PENDING_INSERT_LINGER = 30000;
+    /**
+     * Time to wait before writing a batch again, after a database error (in milliseconds).
+     */
+    private static final long PENDING_INSERT_RETRY_DELAY = 5000;
+    /**
+     * Maximum number of attempts to write a batch to the database.
+     */
+    private static final int PENDING_INSERT_MAX_ATTEMPTS = 3;
+    /**
+     * Maximum number of events in the journal which are not written to the database.
+     */
+    private static final int JOURNAL_CAPACITY = 1024;
+    /**
+     * Time window for debouncing events (in milliseconds): when several events are captured within this window, only
+     * the last one is kept.
+     */
+    private static final long EVENT_DEBOUNCE_WINDOW = 10000;
     /**
      * This intent will open the main UI.
      */
     private PendingIntent openUIPendingIntent;
     private PendingIntent networkOperatorSettingsPendingIntent;
-    private IntentFilter batteryIntentFilter;
     private PowerManager pm;
     private TelephonyManager tm;
     private ConnectivityManager cm;
@@ -95,14 +122,13 @@ public class MonitorService extends Service implements OnSharedPreferenceChangeL
     private BroadcastReceiver connectionMonitor;
     private BroadcastReceiver batteryMonitor;
     private BroadcastReceiver shutdownMonitor;
-    private Boolean lastWifiConnected;
-    private Boolean lastMobileNetworkConnected;
-    private boolean powerOn = true;
-    private String lastMobileOperatorId;
+    private final DeviceStateTracker deviceState = new DeviceStateTracker();
     private String mobileOperatorId;
     private boolean mobileNetworkConnected;
     private int mobileNetworkType;
-    private BlockingQueue< Event> pendingInsert;
+    private EventRingBuffer pendingInsert;
+    private EventJournal journal;
+    private EventCoalescer eventCoalescer;
     private SharedPreferences prefs;
     private Bitmap freeLargeIcon;
     private Bitmap orangeLargeIcon;
@@ -161,8 +187,22 @@ public class MonitorService extends Service implements OnSharedPreferenceChangeL
         // Initialize and start a worker thread for inserting rows into the
         // application database.
         final Context c = getApplicationContext();
-        pendingInsert = new ArrayBlockingQueue< Event>(8);
-        new PendingInsertWorker(c, pendingInsert).start();
+        pendingInsert = new EventRingBuffer(PENDING_INSERT_CAPACITY);
+        try {
+            journal = new EventJournal(new File(getFilesDir(), "events.journal"), JOURNAL_CAPACITY);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open event journal", e);
+            journal = null;
+        }
+        new PendingInsertWorker(new EventWriter(c), pendingInsert, journal, PENDING_INSERT_BATCH_SIZE,
+                PENDING_INSERT_LINGER).start();
+
+        // Old events are regularly removed from the database.
+        DatabaseCleanup.schedule(c);
+
+        // Events are filtered before they are inserted: battery level updates
+        // may be received many times per minute.
+        eventCoalescer = new EventCoalescer(new Handler(), EVENT_DEBOUNCE_WINDOW, this);
 
         // This intent is fired when the application notification is clicked.
         openUIPendingIntent =
@@ -176,9 +216,11 @@ public class MonitorService extends Service implements OnSharedPreferenceChangeL
                 PendingIntent.FLAG_CANCEL_CURRENT);
 
         // Watch screen light: is the screen on?
+        deviceState.setScreenOn(pm.isScreenOn());
         screenMonitor = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
+                deviceState.setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
                 updateEventDatabase();
             }
         };
@@ -242,12 +284,17 @@ public class MonitorService extends Service implements OnSharedPreferenceChangeL
         batteryMonitor = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
+                deviceState.setBatteryState(intent);
                 updateEventDatabase();
             }
         };
 
-        batteryIntentFilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
-        registerReceiver(batteryMonitor, batteryIntentFilter);
+        // The current battery state is returned with the sticky intent.
+        final Intent batteryIntent =
+            registerReceiver(batteryMonitor, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (batteryIntent != null) {
+            deviceState.setBatteryState(batteryIntent);
+        }
 
         shutdownMonitor = new BroadcastReceiver() {
             @Override
@@ -267,11 +314,17 @@ public class MonitorService extends Service implements OnSharedPreferenceChangeL
     public void onDestroy() {
         super.onDestroy();
 
-        // Tell the PendingInsert worker thread to stop.
-        try {
-            pendingInsert.put(STOP_PENDING_CONTENT_MARKER);
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Failed to stop PendingInsert worker thread", e);
+        // Tell the PendingInsert worker thread to stop, once the last
+        // captured event is inserted. The journal is closed by this thread.
+        eventCoalescer.flush();
+        pendingInsert.close();
+        journal = null;
+        if (DEBUG) {
+            Log.d(TAG, "Captured events: " + eventCoalescer.getReceivedCount() + " received, "
+                    + eventCoalescer.getFilteredCount() + " unchanged, " + eventCoalescer.getCoalescedCount()
+                    + " debounced");
+            Log.d(TAG, "Pending events: " + pendingInsert.getCoalescedCount() + " coalesced, "
+                    + pendingInsert.getDroppedCount() + " dropped");
         }
 
         // Stop listening to system events.
@@ -396,7 +449,7 @@ public class MonitorService extends Service implements OnSharedPreferenceChangeL
 
     private void onDeviceShutdown() {
         Log.i(TAG, "Device is about to shut down");
-        powerOn = false;
+        deviceState.setPowerOn(false);
         updateEventDatabase();
     }
 
@@ -409,10 +462,9 @@ public class MonitorService extends Service implements OnSharedPreferenceChangeL
         final boolean wifiNetworkConnected = ni != null && ni.isConnected();
 
         // Prevent duplicated inserts.
-        if (lastWifiConnected != null && lastWifiConnected.booleanValue() == wifiNetworkConnected) {
+        if (!deviceState.setWifiConnected(wifiNetworkConnected)) {
             return false;
         }
-        lastWifiConnected = wifiNetworkConnected;
 
         Log.i(TAG, "Wifi state updated: connected=" + wifiNetworkConnected);
         return true;
@@ -428,64 +480,100 @@ public class MonitorService extends Service implements OnSharedPreferenceChangeL
         }
 
         // Prevent duplicated inserts.
-        if (lastMobileNetworkConnected != null && lastMobileOperatorId != null &&
-            lastMobileNetworkConnected.booleanValue() == mobileNetworkConnected &&
-            lastMobileOperatorId.equals(mobileOperatorId)) {
+        if (!deviceState.setMobileNetwork(mobileNetworkConnected, mobileOperatorId)) {
             return false;
         }
-        lastMobileNetworkConnected = mobileNetworkConnected;
-        lastMobileOperatorId = mobileOperatorId;
 
         Log.i(TAG, "Phone state updated: operator=" + mobileOperatorId + "; connected=" + mobileNetworkConnected);
         return true;
     }
 
     private void updateEventDatabase() {
-        final Event e = new Event();
+        final Event e = Event.obtain();
         e.timestamp = System.currentTimeMillis();
-        e.screenOn = pm != null ? pm.isScreenOn() : false;
-        e.batteryLevel = getBatteryLevel();
-        e.wifiConnected = Boolean.TRUE.equals(lastWifiConnected);
-        e.mobileConnected = powerOn ? Boolean.TRUE.equals(lastMobileNetworkConnected) : false;
-        e.mobileOperator = lastMobileOperatorId;
-        e.powerOn = powerOn;
+        // The device state is read without any call to system services.
+        deviceState.fill(e);
 
-        try {
-            pendingInsert.put(e);
-        } catch (InterruptedException ex) {
-            Log.w(TAG, "Failed to schedule event insertion", ex);
-        }
+        eventCoalescer.submit(e, deviceState.isPluggedIn());
     }
 
-    private int getBatteryLevel() {
-        if (batteryIntentFilter == null) {
-            return 100;
-        }
-        final Intent i = registerReceiver(null, batteryIntentFilter);
-        if (i == null) {
-            return 100;
+    @Override
+    public void onEvent(Event e) {
+        // The event is stored in the journal before it is inserted.
+        if (journal != null) {
+            if (journal.append(e) == 0) {
+                Log.w(TAG, "Event journal is full");
+            } else if (!e.powerOn) {
+                // The device is shutting down: make sure the last event is
+                // stored.
+                journal.sync();
+            }
         }
 
-        final int level = i.getIntExtra(BatteryManager.EXTRA_LEVEL, 0);
-        final int scale = i.getIntExtra(BatteryManager.EXTRA_SCALE, 0);
-
-        return scale == 0 ? 100 : (int) Math.round(level * 100d / scale);
+        // This call never blocks the main thread, even if the database is
+        // busy: the event is coalesced with pending events if needed.
+        // The event must not be used after this call, since it may be
+        // recycled by the PendingInsert worker thread.
+        if (!pendingInsert.offer(e) && DEBUG) {
+            Log.d(TAG, "Pending event replaced or dropped: database is busy");
+        }
     }
 
     /**
      * This internal thread is responsible for inserting data into the application database. This thread will prevent
      * the main loop from being used for interacting with the database, which could cause "Application Not Responding"
      * dialogs.
+     * <p>
+     * Events are inserted by batch: pending events are collected until the batch is full, or until the first event
+     * of the batch is older than a linger time. Every batch is then written in a single database transaction. Once
+     * written, events are returned to the pool so that no object is allocated in steady state.
+     * <p>
+     * Since every pending event is also stored in the event journal, the linger time can be long: events from the
+     * journal which were not written to the database are replayed when this thread is started. Journal records are
+     * only marked as applied once their batch is committed. A batch which cannot be written is retried a few times;
+     * if it still fails, it is abandoned: its records are kept in the journal, and are written again once a later
+     * batch is written, or when this thread is started again. Records are replayed unless an event with the same
+     * timestamp is already in the database. Records which still cannot be written are dropped, so that the journal
+     * is not blocked.
      */
-    private static class PendingInsertWorker extends Thread {
-        private final Context context;
-        private final BlockingQueue< Event> pendingInsert;
-
-        public PendingInsertWorker(final Context context, final BlockingQueue< Event> pendingInsert) {
+    static class PendingInsertWorker extends Thread {
+        private final EventRingBuffer pendingInsert;
+        private final EventJournal journal;
+        private final long linger;
+        private final Event[] batch;
+        private int batchLength;
+        private int batchSequence;
+        /**
+         * Sequence number of the first journal record in the current batch.
+         */
+        private int batchFirstSequence;
+        /**
+         * Records after this sequence number must not be marked as applied: a batch including these records could not
+         * be written to the database.
+         */
+        private int appliedLimit = Integer.MAX_VALUE;
+        /**
+         * Range of journal records in abandoned batches, or <code>0</code> if no batch was abandoned.
+         */
+        private int abandonedFrom;
+        private int abandonedTo;
+        private int failedAttempts;
+        private final EventWriter writer;
+        /**
+         * The signature of the last inserted event is used to prevent duplicated inserts.
+         */
+        private boolean hasLastSignature;
+        private long lastSignature;
+
+        public PendingInsertWorker(final EventWriter writer, final EventRingBuffer pendingInsert,
+                final EventJournal journal, final int batchSize, final long linger) {
             super("FreeMobileNetstat/PendingInsert");
             setDaemon(true);
-            this.context = context;
+            this.writer = writer;
             this.pendingInsert = pendingInsert;
+            this.journal = journal;
+            this.linger = linger;
+            batch = new Event[batchSize];
         }
 
         @Override
@@ -497,51 +585,248 @@ public class MonitorService extends Service implements OnSharedPreferenceChangeL
             // Set a lower priority to prevent UI from lagging.
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
-            final ContentValues cv = new ContentValues(7);
-            final ContentResolver cr = context.getContentResolver();
-
-            final ContentValues lastCV = new ContentValues(7);
-            long lastEventHashCode = 0;
+            if (journal != null) {
+                try {
+                    replayJournal();
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to replay event journal", e);
+                } finally {
+                    recycleBatch();
+                }
+            }
 
             boolean running = true;
             while (running) {
                 try {
-                    final Event e = pendingInsert.take();
-                    if (STOP_PENDING_CONTENT_MARKER == e) {
-                        running = false;
+                    if (failedAttempts == 0) {
+                        running = collectBatch();
                     } else {
-                        e.write(cv);
-
-                        // Check the last inserted event hash code:
-                        // if the hash code is the same, the event is not
-                        // inserted.
-                        lastCV.putAll(cv);
-                        lastCV.remove(Events.TIMESTAMP);
-                        if (e.powerOn && lastCV.hashCode() == lastEventHashCode) {
-                            if (DEBUG) {
-                                Log.d(TAG, "Skip event insertion: " + e);
-                            }
-                        } else {
-                            if (DEBUG) {
-                                Log.d(TAG, "Inserting new event into database: " + e);
-                            }
-                            cr.insert(Events.CONTENT_URI, cv);
-                        }
-                        lastEventHashCode = lastCV.hashCode();
-                        lastCV.clear();
+                        // The previous write failed: the same batch is
+                        // written again after a delay.
+                        Thread.sleep(PENDING_INSERT_RETRY_DELAY);
+                    }
+                    flushBatch();
+                    failedAttempts = 0;
+                    recycleBatch();
+                    if (abandonedFrom != 0) {
+                        // The database is available again.
+                        retryAbandonedBatches();
                     }
-                    cv.clear();
                 } catch (InterruptedException e) {
                     running = false;
                 } catch (Exception e) {
                     Log.e(TAG, "Pending insert failed", e);
+                    if (++failedAttempts == PENDING_INSERT_MAX_ATTEMPTS) {
+                        abandonBatch();
+                    }
                 }
             }
+            // Events which were not written are still in the journal.
+            recycleBatch();
+
+            writer.close();
+            if (journal != null) {
+                journal.close();
+            }
 
             if (DEBUG) {
                 Log.d(TAG, "PendingInsert worker thread is terminated");
             }
         }
+
+        /**
+         * Insert events from the journal which were not written to the database.
+         */
+        void replayJournal() {
+            final int from = journal.getReplayFrom();
+            final int to = journal.getReplayTo();
+            if (from > to) {
+                return;
+            }
+            Log.i(TAG, "Replaying " + (to - from + 1) + " event(s) from journal");
+
+            // The journal may not have been updated after the last database
+            // transaction, and records of abandoned batches may be older than
+            // records written after them: events which are already in the
+            // database are skipped.
+            final long lastTimestamp = writer.getLastTimestamp();
+            for (int seq = from; seq <= to; ++seq) {
+                final Event e = Event.obtain();
+                if (journal.read(seq, e) && (e.timestamp > lastTimestamp || !writer.hasEvent(e.timestamp))) {
+                    if (add(e)) {
+                        replayBatch();
+                    }
+                } else {
+                    e.recycle();
+                }
+            }
+            batchSequence = to;
+            replayBatch();
+        }
+
+        /**
+         * Write a batch of events from the journal. These events were not
+         * written before this thread was started: if they still cannot be
+         * written, they are dropped so that the journal is not blocked.
+         */
+        private void replayBatch() {
+            try {
+                flushBatch();
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to replay " + batchLength + " event(s) from journal", e);
+                hasLastSignature = false;
+                journal.setApplied(batchSequence);
+            }
+            recycleBatch();
+        }
+
+        /**
+         * Collect events for the next batch.
+         * @return <code>false</code> if the buffer is closed
+         */
+        private boolean collectBatch() throws InterruptedException {
+            // Wait for the first event of the batch.
+            Event e = pendingInsert.take();
+            if (e == null) {
+                // The buffer is closed.
+                return false;
+            }
+            final long deadline = SystemClock.uptimeMillis() + linger;
+            while (e != null) {
+                // The device is shutting down: the event must be
+                // written right now.
+                final boolean flush = !e.powerOn;
+                if (add(e) || flush) {
+                    return true;
+                }
+
+                // Wait for more events before writing the batch, as long as
+                // the batch is not too old.
+                final long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    return true;
+                }
+                e = pendingInsert.poll(remaining, TimeUnit.MILLISECONDS);
+                if (e == null && pendingInsert.isClosed()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Give up writing the current batch. Its records are kept in the
+         * journal, so that they are written again once a later batch is
+         * written, or when this thread is started again.
+         */
+        void abandonBatch() {
+            Log.w(TAG, "Giving up inserting " + batchLength + " event(s) after " + failedAttempts
+                    + " attempts: events are kept in journal");
+            if (batchFirstSequence != 0) {
+                if (abandonedFrom == 0 || batchFirstSequence < abandonedFrom) {
+                    abandonedFrom = batchFirstSequence;
+                }
+                abandonedTo = Math.max(abandonedTo, batchSequence);
+                appliedLimit = abandonedFrom - 1;
+            }
+            // The last signature belongs to an event which was not written.
+            hasLastSignature = false;
+            failedAttempts = 0;
+            recycleBatch();
+        }
+
+        /**
+         * Write events from abandoned batches again, from the journal. Events
+         * which are already in the database are skipped. If these events
+         * still cannot be written, they are dropped: every record written so
+         * far is then marked as applied, so that the journal is not blocked.
+         */
+        void retryAbandonedBatches() {
+            final int from = abandonedFrom;
+            final int to = abandonedTo;
+            abandonedFrom = 0;
+            abandonedTo = 0;
+            Log.i(TAG, "Writing events from abandoned batches again");
+            try {
+                for (int seq = from; seq <= to; ++seq) {
+                    final Event e = Event.obtain();
+                    if (journal.read(seq, e) && !writer.hasEvent(e.timestamp)) {
+                        batch[batchLength++] = e;
+                        if (batchLength == batch.length) {
+                            writer.write(batch, batchLength);
+                            recycleBatch();
+                        }
+                    } else {
+                        e.recycle();
+                    }
+                }
+                if (batchLength != 0) {
+                    writer.write(batch, batchLength);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to write events from abandoned batches: events are dropped", e);
+            } finally {
+                recycleBatch();
+            }
+            appliedLimit = Integer.MAX_VALUE;
+            journal.setApplied(batchSequence);
+        }
+
+        /**
+         * Add an event to the current batch.
+         * @return <code>true</code> if the batch is full
+         */
+        boolean add(Event e) {
+            if (e.journalSequence > batchSequence) {
+                batchSequence = e.journalSequence;
+            }
+            if (e.journalSequence != 0 && batchFirstSequence == 0) {
+                batchFirstSequence = e.journalSequence;
+            }
+
+            // Check the last inserted event signature:
+            // if the signature is the same, the event is not
+            // inserted.
+            final long signature = e.signature();
+            if (e.powerOn && hasLastSignature && signature == lastSignature) {
+                if (DEBUG) {
+                    Log.d(TAG, "Skip event insertion: " + e);
+                }
+                e.recycle();
+            } else {
+                if (DEBUG) {
+                    Log.d(TAG, "Adding new event to batch: " + e);
+                }
+                batch[batchLength++] = e;
+            }
+            hasLastSignature = true;
+            lastSignature = signature;
+
+            return batchLength == batch.length;
+        }
+
+        void flushBatch() {
+            if (batchLength != 0) {
+                if (DEBUG) {
+                    Log.d(TAG, "Inserting " + batchLength + " event(s) into database");
+                }
+                writer.write(batch, batchLength);
+            }
+            // Records are only marked as applied once they are committed.
+            if (journal != null && batchSequence != 0) {
+                journal.setApplied(Math.min(batchSequence, appliedLimit));
+            }
+        }
+
+        void recycleBatch() {
+            // Events are recycled once they are written.
+            for (int i = 0; i < batchLength; ++i) {
+                batch[i].recycle();
+                batch[i] = null;
+            }
+            batchLength = 0;
+            batchFirstSequence = 0;
+        }
     }
 
     /**
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat;
+
+import org.pixmob.freemobile.netstat.content.NetstatContract.StateIntervals;
+
+import android.database.Cursor;
+
+/**
+ * Time interval where the device state did not change.
+ * @author Pixmob
+ */
+public class StateInterval {
+    public long start;
+    public long end;
+    public boolean screenOn;
+    public boolean wifiConnected;
+    public boolean mobileConnected;
+    public String mobileOperator;
+    public boolean powerOn;
+
+    /**
+     * Read a {@link StateInterval} instance from a database {@link Cursor}.
+     * The cursor should include every columns defined in
+     * {@link StateIntervals}.
+     */
+    public void read(Cursor c) {
+        start = c.getLong(c.getColumnIndexOrThrow(StateIntervals.START));
+        end = c.getLong(c.getColumnIndexOrThrow(StateIntervals.END));
+        screenOn = c.getInt(c.getColumnIndexOrThrow(StateIntervals.SCREEN_ON)) == 1;
+        wifiConnected = c.getInt(c.getColumnIndexOrThrow(StateIntervals.WIFI_CONNECTED)) == 1;
+        mobileConnected = c.getInt(c.getColumnIndexOrThrow(StateIntervals.MOBILE_CONNECTED)) == 1;
+        mobileOperator = c.getString(c.getColumnIndexOrThrow(StateIntervals.MOBILE_OPERATOR));
+        powerOn = c.getInt(c.getColumnIndexOrThrow(StateIntervals.POWER_ON)) == 1;
+    }
+
+    @Override
+    public String toString() {
+        return "StateInterval[start=" + start + "; end=" + end + "; screenOn=" + screenOn + "; wifiConnected="
+                + wifiConnected + "; mobileConnected=" + mobileConnected + "; mobileOperator=" + mobileOperator
+                + "; powerOn=" + powerOn + "]";
+    }
+}
@@ -28,7 +28,6 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -50,7 +49,7 @@ import java.util.UUID;
 
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+import org.pixmob.freemobile.netstat.content.EventStore;
 import org.pixmob.freemobile.netstat.util.DateUtils;
 import org.pixmob.httpclient.HttpClient;
 import org.pixmob.httpclient.HttpClientException;
@@ -212,13 +211,23 @@ public class SyncService extends IntentService {
             c.close();
         }
 
-        // Compute missing uploads.
+        // Compute missing uploads. Durations are computed from the index
+        // shared with the statistics screen, updated when the first missing
+        // day is found: only new events are read. The indexed time range is
+        // extended if needed, never reduced.
+        final EventStore store = new EventStore(this);
+        final DurationIndex index = store.getDurationIndex();
+        boolean indexUpdated = false;
         final ContentValues cv = new ContentValues();
         db.beginTransaction();
         try {
             for (long d = statTimestampStart; d < now; d += DAY_IN_MILLISECONDS) {
                 if (stats.get(d) == null && !uploadedStats.contains(d)) {
-                    final DailyStat s = computeDailyStat(d);
+                    if (!indexUpdated) {
+                        index.update(store, Math.min(d, index.getStart()));
+                        indexUpdated = true;
+                    }
+                    final DailyStat s = computeDailyStat(store, index, d);
                     cv.put("stat_timestamp", d);
                     cv.put("orange", s.orange);
                     cv.put("free_mobile", s.freeMobile);
@@ -319,50 +328,30 @@ public class SyncService extends IntentService {
         }
     }
 
-    private DailyStat computeDailyStat(long date) {
-        long timeOnOrange = 0;
-        long timeOnFreeMobile = 0;
-
+    private DailyStat computeDailyStat(EventStore store, DurationIndex index, long date) {
         if (DEBUG) {
             Log.d(TAG, "Computing statistics for " + DateUtils.formatDate(date));
         }
 
-        final Cursor c =
-            getContentResolver().query(Events.CONTENT_URI,
-                new String[] {Events.TIMESTAMP, Events.MOBILE_OPERATOR },
-                Events.TIMESTAMP + ">=? AND " + Events.TIMESTAMP + "<=?",
-                new String[] {String.valueOf(date), String.valueOf(date + 86400 * 1000) }, Events.TIMESTAMP);
-        try {
-            long t0 = 0;
-            MobileOperator op0 = null;
-            CharArrayBuffer cBuf = new CharArrayBuffer(6);
-
-            while (c.moveToNext()) {
-                final long t = c.getLong(0);
-                c.copyStringToBuffer(1, cBuf);
-                final MobileOperator op = MobileOperator.fromString(cBuf);
-
-                if (t0 != 0) {
-                    if (op != null && op.equals(op0)) {
-                        final long dt = t - t0;
-                        if (MobileOperator.ORANGE.equals(op)) {
-                            timeOnOrange += dt;
-                        } else if (MobileOperator.FREE_MOBILE.equals(op)) {
-                            timeOnFreeMobile += dt;
-                        }
-                    }
-                }
-
-                t0 = t;
-                op0 = op;
+        // Durations are computed from local midnight to the next midnight:
+        // days do not last 24 hours when daylight saving time starts or ends.
+        final Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(date);
+        cal.add(Calendar.DATE, 1);
+        final long nextDate = dateAtMidnight(cal.getTimeInMillis());
+        final EventStore.Totals totals = new EventStore.Totals();
+        synchronized (index) {
+            // The index is shared: it must not be updated between these
+            // calls.
+            if (index.covers(date, nextDate)) {
+                index.query(date, nextDate, totals);
+            } else {
+                store.readTotals(date, nextDate, totals);
             }
-        } finally {
-            c.close();
         }
-
         final DailyStat s = new DailyStat();
-        s.orange = timeOnOrange;
-        s.freeMobile = timeOnFreeMobile;
+        s.orange = totals.orangeTime;
+        s.freeMobile = totals.freeMobileTime;
         return s;
     }
 
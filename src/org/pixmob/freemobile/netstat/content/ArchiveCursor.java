@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+
+import android.database.AbstractCursor;
+
+/**
+ * Cursor reading archived events, with the columns defined in {@link Events}.
+ * Values are read from decoded segments: no object is allocated for each row.
+ * @author Pixmob
+ */
+class ArchiveCursor extends AbstractCursor {
+    /**
+     * Every column, in the same order as the {@link DatabaseHelper#EVENTS_TABLE}
+     * view.
+     */
+    static final String[] ALL_COLUMNS = { Events._ID, Events.TIMESTAMP, Events.MOBILE_CONNECTED,
+            Events.MOBILE_OPERATOR, Events.WIFI_CONNECTED, Events.BATTERY_LEVEL, Events.SCREEN_ON, Events.POWER_ON };
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_TIMESTAMP = 1;
+    private static final int COLUMN_MOBILE_CONNECTED = 2;
+    private static final int COLUMN_MOBILE_OPERATOR = 3;
+    private static final int COLUMN_WIFI_CONNECTED = 4;
+    private static final int COLUMN_BATTERY_LEVEL = 5;
+    private static final int COLUMN_SCREEN_ON = 6;
+    private static final int COLUMN_POWER_ON = 7;
+    private final String[] columnNames;
+    private final int[] columns;
+    private final EventArchive.Segment[] segments;
+    private final int[] starts;
+    private final int[] ends;
+    private final boolean descending;
+    private final int count;
+    private EventArchive.Segment segment;
+    private int index;
+
+    /**
+     * Create a cursor reading events from segments.
+     * @param segments segments in chronological order
+     * @param from range start (inclusive)
+     * @param to range end (exclusive)
+     * @param descending <code>true</code> to read the newest events first
+     */
+    public ArchiveCursor(final String[] projection, final EventArchive.Segment[] segments, final long from,
+            final long to, final boolean descending) {
+        checkProjection(projection);
+        columnNames = projection == null ? ALL_COLUMNS : projection;
+        columns = new int[columnNames.length];
+        for (int i = 0; i < columnNames.length; ++i) {
+            columns[i] = indexOf(columnNames[i]);
+        }
+
+        this.segments = segments;
+        this.descending = descending;
+        starts = new int[segments.length];
+        ends = new int[segments.length];
+        int total = 0;
+        for (int i = 0; i < segments.length; ++i) {
+            starts[i] = segments[i].indexOf(from);
+            ends[i] = segments[i].indexOf(to);
+            total += ends[i] - starts[i];
+        }
+        count = total;
+    }
+
+    /**
+     * Check that a projection only includes columns from {@link Events}:
+     * expressions are not supported.
+     * @throws IllegalArgumentException if a column is not supported
+     */
+    public static void checkProjection(String[] projection) {
+        if (projection == null) {
+            return;
+        }
+        for (final String column : projection) {
+            if (indexOf(column) == -1) {
+                throw new IllegalArgumentException("Unsupported column for archived events: " + column);
+            }
+        }
+    }
+
+    /**
+     * Check if a projection only includes columns from {@link Events}.
+     */
+    public static boolean isSupported(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (final String column : projection) {
+            if (indexOf(column) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < ALL_COLUMNS.length; ++i) {
+            if (ALL_COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int position = descending ? count - 1 - newPosition : newPosition;
+        for (int i = 0; i < segments.length; ++i) {
+            final int length = ends[i] - starts[i];
+            if (position < length) {
+                segment = segments[i];
+                index = starts[i] + position;
+                return true;
+            }
+            position -= length;
+        }
+        return false;
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        if (columns[column] == COLUMN_MOBILE_OPERATOR) {
+            final int operatorIndex = segment.operatorIndexes[index];
+            return operatorIndex == -1 ? null : segment.operators[operatorIndex];
+        }
+        return String.valueOf(getLong(column));
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        switch (columns[column]) {
+            case COLUMN_ID:
+                return segment.ids[index];
+            case COLUMN_TIMESTAMP:
+                return segment.timestamps[index];
+            case COLUMN_BATTERY_LEVEL:
+                return segment.batteryLevels[index];
+            case COLUMN_MOBILE_CONNECTED:
+                return getFlag(Event.FLAG_MOBILE_CONNECTED);
+            case COLUMN_WIFI_CONNECTED:
+                return getFlag(Event.FLAG_WIFI_CONNECTED);
+            case COLUMN_SCREEN_ON:
+                return getFlag(Event.FLAG_SCREEN_ON);
+            case COLUMN_POWER_ON:
+                return getFlag(Event.FLAG_POWER_ON);
+            default:
+                final String value = getString(column);
+                return value == null ? 0 : Long.parseLong(value);
+        }
+    }
+
+    private int getFlag(int flag) {
+        return (segment.flags[index] & flag) != 0 ? 1 : 0;
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return columns[column] == COLUMN_MOBILE_OPERATOR && segment.operatorIndexes[index] == -1;
+    }
+}
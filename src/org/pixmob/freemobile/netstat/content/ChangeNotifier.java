@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Notify content observers about event changes. Changes are coalesced: at most
+ * one notification is sent within a time window. When only new events were
+ * inserted, the notification Uri includes the identifier range of these
+ * events, with the {@link Events#PARAM_FIRST_ID} and
+ * {@link Events#PARAM_LAST_ID} parameters. This class is thread-safe.
+ * @author Pixmob
+ */
+class ChangeNotifier implements Runnable {
+    private final ContentResolver contentResolver;
+    private final Handler handler;
+    private final long window;
+    private long firstInsertedId = -1;
+    private long lastInsertedId = -1;
+    private boolean changed;
+    private boolean scheduled;
+    private long lastNotifyTime = -1;
+    private int changeCount;
+    private int dataVersion;
+
+    /**
+     * Create a new instance.
+     * @param contentResolver resolver for notifying observers, or
+     *            <code>null</code> if changes are only recorded
+     * @param window time window for coalescing notifications (in
+     *            milliseconds)
+     */
+    public ChangeNotifier(final ContentResolver contentResolver, final long window) {
+        this.contentResolver = contentResolver;
+        this.window = window;
+        handler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Record new events.
+     */
+    public synchronized void notifyInserted(long firstId, long lastId) {
+        ++dataVersion;
+        if (firstInsertedId == -1 || firstId < firstInsertedId) {
+            firstInsertedId = firstId;
+        }
+        if (lastId > lastInsertedId) {
+            lastInsertedId = lastId;
+        }
+        schedule();
+    }
+
+    /**
+     * Record events updates or deletions.
+     */
+    public synchronized void notifyChanged() {
+        changed = true;
+        ++changeCount;
+        ++dataVersion;
+        schedule();
+    }
+
+    /**
+     * Get a counter incremented each time existing events are updated or
+     * deleted. Readers keeping state derived from events compare this value
+     * to detect changes they cannot apply incrementally.
+     */
+    public synchronized int getChangeCount() {
+        return changeCount;
+    }
+
+    /**
+     * Get a counter incremented each time events are inserted, updated or
+     * deleted. Results computed from events are up to date while this value
+     * does not change.
+     */
+    public synchronized int getDataVersion() {
+        return dataVersion;
+    }
+
+    /**
+     * Record pending changes.
+     */
+    public synchronized void notifyChanges(Changes changes) {
+        if (changes.changed) {
+            notifyChanged();
+        }
+        if (changes.firstInsertedId != -1) {
+            notifyInserted(changes.firstInsertedId, changes.lastInsertedId);
+        }
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            final long now = SystemClock.uptimeMillis();
+            final long delay = lastNotifyTime == -1 ? 0 : Math.max(0, lastNotifyTime + window - now);
+            handler.postDelayed(this, delay);
+        }
+    }
+
+    @Override
+    public void run() {
+        final Uri uri;
+        synchronized (this) {
+            scheduled = false;
+            lastNotifyTime = SystemClock.uptimeMillis();
+            if (changed) {
+                // Existing events may have been updated: the observers must
+                // read every event again.
+                uri = Events.CONTENT_URI;
+            } else if (firstInsertedId != -1) {
+                uri = Events.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(Events.PARAM_FIRST_ID, String.valueOf(firstInsertedId))
+                        .appendQueryParameter(Events.PARAM_LAST_ID, String.valueOf(lastInsertedId)).build();
+            } else {
+                return;
+            }
+            changed = false;
+            firstInsertedId = -1;
+            lastInsertedId = -1;
+        }
+        if (contentResolver != null) {
+            contentResolver.notifyChange(uri, null, false);
+        }
+    }
+
+    /**
+     * Changes which are not recorded yet. This class is not thread-safe.
+     * @author Pixmob
+     */
+    public static class Changes {
+        private long firstInsertedId = -1;
+        private long lastInsertedId = -1;
+        private boolean changed;
+
+        public void addInserted(long id) {
+            if (firstInsertedId == -1 || id < firstInsertedId) {
+                firstInsertedId = id;
+            }
+            if (id > lastInsertedId) {
+                lastInsertedId = id;
+            }
+        }
+
+        public void addChanged() {
+            changed = true;
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import static org.pixmob.freemobile.netstat.Constants.TAG;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.pixmob.freemobile.netstat.DurationIndex;
+import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+import org.pixmob.freemobile.netstat.feature.Features;
+import org.pixmob.freemobile.netstat.feature.WriteAheadLoggingFeature;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/**
+ * This class is responsible for managing the application database. The
+ * database schema is initialized when the it is created, and upgraded after an
+ * application update. A single instance is shared by every database user in
+ * the application process.
+ * <p>
+ * Schema changes are made by migration steps: each step upgrades the schema to
+ * the next version, keeping existing data. A new database is created with the
+ * first schema version, and then upgraded with every migration step.
+ * <p>
+ * Events are stored in a compact format: boolean states are packed in a single
+ * bitfield, and mobile operators are stored in a dictionary table. Events are
+ * stored in monthly partitions: see {@link EventPartitions}. The
+ * {@link #EVENTS_TABLE} view exposes the columns defined in {@link Events}.
+ * Durations are pre-aggregated in rollup tables: see {@link EventRollups}.
+ * Consecutive events sharing the same state are stored as intervals: see
+ * {@link EventIntervals}. Battery levels are downsampled for charts: see
+ * {@link EventBatteryLevels}. Old events are moved to compressed archive
+ * segments: see {@link EventArchive}.
+ * <p>
+ * Write-ahead logging is enabled when it's available, so that statistics
+ * queries and event inserts do not block each other.
+ * @author Pixmob
+ */
+class DatabaseHelper extends SQLiteOpenHelper {
+    /**
+     * View for reading events, with the columns defined in {@link Events}.
+     */
+    static final String EVENTS_TABLE = "events";
+    /**
+     * Table where events are stored. Since version 5, this name is the prefix
+     * of event partition tables.
+     */
+    static final String EVENT_DATA_TABLE = "event_data";
+    static final String OPERATORS_TABLE = "operators";
+    /**
+     * Boolean states of an event, packed with the <code>Event.FLAG_*</code>
+     * values.
+     */
+    static final String FLAGS = "flags";
+    /**
+     * Mobile operator identifier, from {@link #OPERATORS_TABLE}.
+     */
+    static final String OPERATOR_ID = "operator_id";
+    static final String OPERATOR_CODE = "code";
+    /**
+     * Current schema version.
+     */
+    private static final int DATABASE_VERSION = 9;
+    /**
+     * First schema version which can be upgraded without losing data.
+     */
+    private static final int MIN_MIGRATION_VERSION = 2;
+    /**
+     * Time window for coalescing change notifications (in milliseconds).
+     */
+    private static final long CHANGE_NOTIFICATION_WINDOW = 5000;
+    /**
+     * Minimum size of the page cache (in bytes): a month of events with its
+     * indexes, about 40 bytes per event, fits in the page cache. A month-long
+     * statistics query does not read pages from the file system again when
+     * new events are inserted.
+     */
+    private static final long PAGE_CACHE_BYTES = 4 * 1024 * 1024;
+    private static DatabaseHelper instance;
+    private final Map<String, Long> operatorIds = new HashMap<String, Long>(8);
+    private final EventPartitions partitions = new EventPartitions();
+    private final EventRollups rollups = new EventRollups();
+    private final EventIntervals intervals = new EventIntervals(partitions);
+    private final EventBatteryLevels batteryLevels = new EventBatteryLevels(partitions);
+    private final EventArchive archive;
+    private final ChangeNotifier changeNotifier;
+    private final DurationIndex durationIndex = new DurationIndex();
+
+    private DatabaseHelper(final Context context) {
+        super(context, "netstat.db", null, DATABASE_VERSION);
+        archive = new EventArchive(new File(context.getFilesDir(), "archive"));
+        changeNotifier = new ChangeNotifier(context.getContentResolver(), CHANGE_NOTIFICATION_WINDOW);
+    }
+
+    /**
+     * Create an instance for a separate database, which is not shared: content
+     * observers are not notified about changes. This constructor is used by
+     * tests and benchmarks.
+     * @param name database file name
+     * @param archiveDir directory where archive segments are stored
+     */
+    DatabaseHelper(final Context context, final String name, final File archiveDir) {
+        super(context, name, null, DATABASE_VERSION);
+        archive = new EventArchive(archiveDir);
+        changeNotifier = new ChangeNotifier(null, CHANGE_NOTIFICATION_WINDOW);
+    }
+
+    /**
+     * Get the shared instance.
+     */
+    public static synchronized DatabaseHelper getInstance(Context context) {
+        if (instance == null) {
+            instance = new DatabaseHelper(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Get the identifier of a mobile operator. The operator is added to the
+     * dictionary table if it is not found. Identifiers are cached: if the
+     * current transaction fails, {@link #clearCaches()} must be called.
+     * @param code mobile operator MCC+MNC code
+     * @return <code>-1</code> if the code is <code>null</code>
+     */
+    public synchronized long getOperatorId(SQLiteDatabase db, String code) {
+        if (code == null) {
+            return -1;
+        }
+        final Long cachedId = operatorIds.get(code);
+        if (cachedId != null) {
+            return cachedId;
+        }
+
+        long id;
+        try {
+            id = DatabaseUtils.longForQuery(db, "SELECT " + Events._ID + " FROM " + OPERATORS_TABLE + " WHERE "
+                    + OPERATOR_CODE + "=?", new String[] { code });
+        } catch (SQLiteDoneException e) {
+            final ContentValues cv = new ContentValues(1);
+            cv.put(OPERATOR_CODE, code);
+            id = db.insertOrThrow(OPERATORS_TABLE, null, cv);
+        }
+        operatorIds.put(code, id);
+        return id;
+    }
+
+    /**
+     * Get event partitions.
+     */
+    public EventPartitions getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Get event rollups.
+     */
+    public EventRollups getRollups() {
+        return rollups;
+    }
+
+    /**
+     * Get state intervals.
+     */
+    public EventIntervals getIntervals() {
+        return intervals;
+    }
+
+    /**
+     * Get downsampled battery levels.
+     */
+    public EventBatteryLevels getBatteryLevels() {
+        return batteryLevels;
+    }
+
+    /**
+     * Get archived events.
+     */
+    public EventArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Get the notifier for event changes, shared by every database writer.
+     */
+    public ChangeNotifier getChangeNotifier() {
+        return changeNotifier;
+    }
+
+    /**
+     * Get the index of cumulative durations, shared by every database reader.
+     */
+    public DurationIndex getDurationIndex() {
+        return durationIndex;
+    }
+
+    /**
+     * Clear cached database state. This method must be called when a
+     * transaction fails.
+     */
+    public synchronized void clearCaches() {
+        operatorIds.clear();
+        partitions.clear();
+        rollups.clear();
+        intervals.clear();
+        batteryLevels.clear();
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        Features.getFeature(WriteAheadLoggingFeature.class).enable(db);
+        // The page cache size is set in pages: it depends on the page size
+        // used by the platform. The default cache size is kept if it is larger.
+        final long pageCacheSize = PAGE_CACHE_BYTES / db.getPageSize();
+        if (pageCacheSize > DatabaseUtils.longForQuery(db, "PRAGMA cache_size", null)) {
+            db.execSQL("PRAGMA cache_size=" + pageCacheSize);
+        }
+        // Sorting events from several partitions does not need to create a
+        // temporary file.
+        db.execSQL("PRAGMA temp_store=MEMORY");
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        if (!db.isReadOnly()) {
+            String req = "CREATE TABLE " + EVENTS_TABLE + " (" + Events._ID
+                    + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + Events.TIMESTAMP + " TIMESTAMP NOT NULL, "
+                    + Events.MOBILE_CONNECTED + " INTEGER NOT NULL, "
+                    + Events.MOBILE_OPERATOR + " TEXT, "
+                    + Events.WIFI_CONNECTED + " INTEGER NOT NULL, "
+                    + Events.BATTERY_LEVEL + " INTEGER NOT NULL, "
+                    + Events.SCREEN_ON + " INTEGER NOT NULL, "
+                    + Events.POWER_ON + " INTEGER NOT NULL)";
+            db.execSQL(req);
+
+            migrate(db, MIN_MIGRATION_VERSION, DATABASE_VERSION);
+            clearCaches();
+        }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (!db.isReadOnly()) {
+            if (oldVersion < MIN_MIGRATION_VERSION) {
+                Log.w(TAG, "Upgrading database from version " + oldVersion
+                        + " to " + newVersion + " which will destroy all data");
+                db.execSQL("DROP TABLE IF EXISTS " + EVENTS_TABLE);
+                onCreate(db);
+            } else {
+                Log.i(TAG, "Upgrading database from version " + oldVersion
+                        + " to " + newVersion);
+                migrate(db, oldVersion, newVersion);
+                if (oldVersion < 9) {
+                    reserveArchivedEventIds(db);
+                }
+                clearCaches();
+            }
+        }
+    }
+
+    /**
+     * Run migration steps in order. This method is called within the
+     * transaction opened by {@link SQLiteOpenHelper}: if a step fails, the
+     * database is left unchanged.
+     */
+    private static void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        for (int version = fromVersion + 1; version <= toVersion; ++version) {
+            switch (version) {
+                case 3:
+                    migrateToVersion3(db);
+                    break;
+                case 4:
+                    migrateToVersion4(db);
+                    break;
+                case 5:
+                    migrateToVersion5(db);
+                    break;
+                case 6:
+                    migrateToVersion6(db);
+                    break;
+                case 7:
+                    migrateToVersion7(db);
+                    break;
+                case 8:
+                    migrateToVersion8(db);
+                    break;
+                case 9:
+                    migrateToVersion9(db);
+                    break;
+                default:
+                    throw new IllegalStateException("No migration to database version " + version);
+            }
+        }
+    }
+
+    /**
+     * Index events by timestamp. The index includes every column read by
+     * statistics queries, so that these queries are served from the index
+     * only, without reading the table nor sorting rows.
+     */
+    private static void migrateToVersion3(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + EVENTS_TABLE + "_timestamp ON " + EVENTS_TABLE + " ("
+                + Events.TIMESTAMP + ", " + Events.MOBILE_OPERATOR + ", " + Events.MOBILE_CONNECTED + ", "
+                + Events.WIFI_CONNECTED + ", " + Events.SCREEN_ON + ", " + Events.BATTERY_LEVEL + ", "
+                + Events.POWER_ON + ")");
+    }
+
+    /**
+     * Store events in a compact format. Existing events are copied to the new
+     * table, and replaced with a view exposing the same columns.
+     */
+    private static void migrateToVersion4(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + OPERATORS_TABLE + " (" + Events._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + OPERATOR_CODE + " TEXT NOT NULL UNIQUE)");
+        db.execSQL("CREATE TABLE " + EVENT_DATA_TABLE + " (" + Events._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + Events.TIMESTAMP + " INTEGER NOT NULL, " + FLAGS + " INTEGER NOT NULL, " + OPERATOR_ID
+                + " INTEGER, " + Events.BATTERY_LEVEL + " INTEGER NOT NULL)");
+
+        db.execSQL("INSERT INTO " + OPERATORS_TABLE + " (" + OPERATOR_CODE + ") SELECT DISTINCT "
+                + Events.MOBILE_OPERATOR + " FROM " + EVENTS_TABLE + " WHERE " + Events.MOBILE_OPERATOR
+                + " IS NOT NULL");
+        db.execSQL("INSERT INTO " + EVENT_DATA_TABLE + " (" + Events._ID + ", " + Events.TIMESTAMP + ", " + FLAGS
+                + ", " + OPERATOR_ID + ", " + Events.BATTERY_LEVEL + ") SELECT e." + Events._ID + ", e."
+                + Events.TIMESTAMP + ", " + "(CASE WHEN e." + Events.SCREEN_ON + " THEN " + Event.FLAG_SCREEN_ON
+                + " ELSE 0 END) | (CASE WHEN e." + Events.WIFI_CONNECTED + " THEN " + Event.FLAG_WIFI_CONNECTED
+                + " ELSE 0 END) | (CASE WHEN e." + Events.MOBILE_CONNECTED + " THEN "
+                + Event.FLAG_MOBILE_CONNECTED + " ELSE 0 END) | (CASE WHEN e." + Events.POWER_ON + " THEN "
+                + Event.FLAG_POWER_ON + " ELSE 0 END), o." + Events._ID + ", e." + Events.BATTERY_LEVEL
+                + " FROM " + EVENTS_TABLE + " e LEFT JOIN " + OPERATORS_TABLE + " o ON o." + OPERATOR_CODE
+                + "=e." + Events.MOBILE_OPERATOR);
+        db.execSQL("DROP INDEX IF EXISTS " + EVENTS_TABLE + "_timestamp");
+        db.execSQL("DROP TABLE " + EVENTS_TABLE);
+
+        // Statistics queries are served from this index only.
+        db.execSQL("CREATE INDEX " + EVENT_DATA_TABLE + "_timestamp ON " + EVENT_DATA_TABLE + " ("
+                + Events.TIMESTAMP + ", " + FLAGS + ", " + OPERATOR_ID + ", " + Events.BATTERY_LEVEL + ")");
+        db.execSQL("CREATE VIEW " + EVENTS_TABLE + " AS SELECT d." + Events._ID + " AS " + Events._ID + ", d."
+                + Events.TIMESTAMP + " AS " + Events.TIMESTAMP + ", " + flagColumn(Event.FLAG_MOBILE_CONNECTED)
+                + " AS " + Events.MOBILE_CONNECTED + ", o." + OPERATOR_CODE + " AS " + Events.MOBILE_OPERATOR
+                + ", " + flagColumn(Event.FLAG_WIFI_CONNECTED) + " AS " + Events.WIFI_CONNECTED + ", d."
+                + Events.BATTERY_LEVEL + " AS " + Events.BATTERY_LEVEL + ", " + flagColumn(Event.FLAG_SCREEN_ON)
+                + " AS " + Events.SCREEN_ON + ", " + flagColumn(Event.FLAG_POWER_ON) + " AS " + Events.POWER_ON
+                + " FROM " + EVENT_DATA_TABLE + " d LEFT JOIN " + OPERATORS_TABLE + " o ON o." + Events._ID
+                + "=d." + OPERATOR_ID);
+    }
+
+    private static String flagColumn(int flag) {
+        return "((d." + FLAGS + " & " + flag + ") != 0)";
+    }
+
+    /**
+     * Move events to monthly partitions.
+     */
+    private static void migrateToVersion5(SQLiteDatabase db) {
+        final EventPartitions partitions = new EventPartitions();
+        final Cursor c = db.rawQuery("SELECT DISTINCT CAST(strftime('%Y%m', " + Events.TIMESTAMP
+                + " / 1000, 'unixepoch') AS INTEGER) FROM " + EVENT_DATA_TABLE, null);
+        try {
+            while (c.moveToNext()) {
+                final int partition = c.getInt(0);
+                partitions.ensurePartition(db, partition);
+                db.execSQL("INSERT INTO " + EventPartitions.getTableName(partition) + " SELECT " + Events._ID
+                        + ", " + Events.TIMESTAMP + ", " + FLAGS + ", " + OPERATOR_ID + ", " + Events.BATTERY_LEVEL
+                        + " FROM " + EVENT_DATA_TABLE + " WHERE " + Events.TIMESTAMP + ">=? AND "
+                        + Events.TIMESTAMP + "<?", new Object[] { EventPartitions.getPartitionStart(partition),
+                        EventPartitions.getPartitionEnd(partition) });
+            }
+        } finally {
+            c.close();
+        }
+
+        db.execSQL("DROP VIEW IF EXISTS " + EVENTS_TABLE);
+        db.execSQL("DROP TABLE " + EVENT_DATA_TABLE);
+        db.execSQL("CREATE VIEW " + EVENTS_TABLE + " AS "
+                + EventPartitions.buildQuery(partitions.getPartitions(db)));
+    }
+
+    /**
+     * Create rollup tables, from existing events.
+     */
+    private static void migrateToVersion6(SQLiteDatabase db) {
+        EventRollups.createTables(db);
+        new EventRollups().rebuild(db);
+    }
+
+    /**
+     * Create state interval tables, from existing events.
+     */
+    private static void migrateToVersion7(SQLiteDatabase db) {
+        EventIntervals.createTables(db);
+        new EventIntervals(new EventPartitions()).rebuild(db);
+    }
+
+    /**
+     * Create downsampled battery level tables, from existing events.
+     */
+    private static void migrateToVersion8(SQLiteDatabase db) {
+        EventBatteryLevels.createTables(db);
+        new EventBatteryLevels(new EventPartitions()).rebuild(db);
+    }
+
+    /**
+     * Store the greatest event identifier, so that identifiers are not reused
+     * once events are deleted.
+     */
+    private static void migrateToVersion9(SQLiteDatabase db) {
+        EventPartitions.createSequenceTable(db);
+    }
+
+    /**
+     * Make sure identifiers of events archived before the event sequence was
+     * stored are not allocated again.
+     */
+    private void reserveArchivedEventIds(SQLiteDatabase db) {
+        final long maxId;
+        try {
+            maxId = archive.getMaxEventId();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read archived event identifiers", e);
+            return;
+        }
+        db.execSQL("UPDATE " + EventPartitions.SEQUENCE_TABLE + " SET " + EventPartitions.LAST_ID + "=MAX("
+                + EventPartitions.LAST_ID + ", ?)", new Object[] { maxId });
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import static org.pixmob.freemobile.netstat.Constants.TAG;
+
+import java.io.IOException;
+
+import org.pixmob.freemobile.netstat.feature.Features;
+import org.pixmob.freemobile.netstat.feature.WriteAheadLoggingFeature;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Maintain the application database file, from the application process.
+ * @author Pixmob
+ */
+public class DatabaseMaintenance {
+    /**
+     * Value of the <code>auto_vacuum</code> pragma when free pages are
+     * reclaimed on request.
+     */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    private final DatabaseHelper dbHelper;
+
+    public DatabaseMaintenance(final Context context) {
+        this(DatabaseHelper.getInstance(context));
+    }
+
+    DatabaseMaintenance(final DatabaseHelper dbHelper) {
+        this.dbHelper = dbHelper;
+    }
+
+    /**
+     * Move events from monthly partitions ending before a given time to
+     * archive segments. Partitions are dropped once archived. Archived events
+     * are still returned by event queries.
+     * @return number of archived events
+     */
+    public int archiveEvents(long before) throws IOException {
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final EventPartitions partitions = dbHelper.getPartitions();
+        final EventArchive archive = dbHelper.getArchive();
+        int count = 0;
+        for (final int partition : partitions.getPartitions(db)) {
+            if (EventPartitions.getPartitionEnd(partition) > before) {
+                break;
+            }
+            // The partition is dropped only if the segment was written.
+            count += archive.archive(db, partition);
+            partitions.dropPartition(db, partition);
+        }
+        if (count != 0) {
+            // The last event is read again when the next event is inserted.
+            dbHelper.getRollups().clear();
+            dbHelper.getIntervals().clear();
+            dbHelper.getChangeNotifier().notifyChanged();
+        }
+        return count;
+    }
+
+    /**
+     * Delete archive segments for months ending before a given time.
+     * @return number of deleted segments
+     */
+    public int deleteArchivedEvents(long before) {
+        final int count = dbHelper.getArchive().delete(EventPartitions.getPartition(before));
+        if (count != 0) {
+            dbHelper.getChangeNotifier().notifyChanged();
+        }
+        return count;
+    }
+
+    /**
+     * Copy the write-ahead log back into the database, so that the log does
+     * not keep growing while readers are active. SQLite only checkpoints the
+     * log when a transaction is committed, and gives up if a reader is using
+     * it: this method is called periodically, when the database is idle. This
+     * method must not be called from the main thread.
+     */
+    public void checkpoint() {
+        Features.getFeature(WriteAheadLoggingFeature.class).checkpoint(dbHelper.getWritableDatabase());
+    }
+
+    /**
+     * Give free database pages back to the file system, after rows were
+     * deleted. Incremental vacuum is enabled the first time this method is
+     * called: the whole database is rebuilt, which cannot be done while the
+     * database is upgraded. This method must not be called from the main
+     * thread.
+     * @return number of reclaimed bytes
+     */
+    public long vacuum() {
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        final long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            Log.i(TAG, "Enabling incremental vacuum");
+            db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+            db.execSQL("VACUUM");
+        } else {
+            // This pragma frees a page each time a row is read: the cursor
+            // is read until the end.
+            final Cursor c = db.rawQuery("PRAGMA incremental_vacuum", null);
+            try {
+                while (c.moveToNext()) {
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return (pageCount - DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)) * pageSize;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.MobileOperator;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Aggregates;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+import org.pixmob.freemobile.netstat.content.NetstatContract.StateIntervals;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Build queries computing aggregates in a time range, with the columns defined
+ * in {@link Aggregates}. Durations are summed from state intervals, and the
+ * last battery level is read from the event partition index: a single row is
+ * returned, without reading every event.
+ * @author Pixmob
+ */
+class EventAggregates {
+    private EventAggregates() {
+    }
+
+    /**
+     * Compute aggregates in a time range. Only partitions overlapping the
+     * time range are read.
+     * @param from range start (inclusive)
+     * @param to range end (exclusive)
+     * @return a cursor with a single row
+     */
+    public static Cursor query(SQLiteDatabase db, EventPartitions partitions, long from, long to) {
+        return db.rawQuery(buildQuery(db, partitions.getPartitions(db, from, to), from, to), null);
+    }
+
+    /**
+     * Get a query computing aggregates in a time range.
+     * @param partitions partitions overlapping the time range
+     * @param from range start (inclusive)
+     * @param to range end (exclusive)
+     */
+    public static String buildQuery(SQLiteDatabase db, int[] partitions, long from, long to) {
+        // Intervals are clipped to the time range.
+        final String start = from == Long.MIN_VALUE ? StateIntervals.START : "MAX(" + StateIntervals.START
+                + ", " + from + ")";
+        final String end = to == Long.MAX_VALUE ? StateIntervals.END : "MIN(" + StateIntervals.END + ", " + to
+                + ")";
+
+        final StringBuilder buf = new StringBuilder(512 + 128 * partitions.length);
+        buf.append("SELECT ").append(sumIf(operatorSelection(db, MobileOperator.ORANGE)))
+                .append(" AS ").append(Aggregates.ORANGE_TIME).append(", ")
+                .append(sumIf(operatorSelection(db, MobileOperator.FREE_MOBILE))).append(" AS ")
+                .append(Aggregates.FREE_MOBILE_TIME).append(", ").append(sumIf(flagSelection(Event.FLAG_WIFI_CONNECTED)))
+                .append(" AS ").append(Aggregates.WIFI_TIME).append(", ")
+                .append(sumIf(flagSelection(Event.FLAG_SCREEN_ON))).append(" AS ").append(Aggregates.SCREEN_ON_TIME)
+                .append(", ");
+        appendLastBatteryLevel(buf, partitions, from, to);
+        buf.append(" AS ").append(Aggregates.BATTERY_LEVEL).append(" FROM (SELECT ").append(end).append(" - ")
+                .append(start).append(" AS dt, ").append(DatabaseHelper.FLAGS).append(", ")
+                .append(DatabaseHelper.OPERATOR_ID).append(" FROM ").append(EventIntervals.INTERVAL_DATA_TABLE)
+                .append(" WHERE ").append(EventIntervals.buildRangeSelection(from, to)).append(" AND (")
+                .append(DatabaseHelper.FLAGS).append(" & ").append(Event.FLAG_POWER_ON).append(") != 0)");
+        return buf.toString();
+    }
+
+    /**
+     * Append an expression for the battery level of the last event in a time
+     * range. Partitions are read from the newest one, until an event is found.
+     */
+    private static void appendLastBatteryLevel(StringBuilder buf, int[] partitions, long from, long to) {
+        if (partitions.length == 0) {
+            buf.append("NULL");
+            return;
+        }
+        buf.append("COALESCE(");
+        for (int i = partitions.length - 1; i >= 0; --i) {
+            buf.append("(SELECT ").append(Events.BATTERY_LEVEL).append(" FROM ")
+                    .append(EventPartitions.getTableName(partitions[i])).append(" WHERE ")
+                    .append(Events.TIMESTAMP).append(">=").append(from).append(" AND ").append(Events.TIMESTAMP)
+                    .append("<").append(to).append(" ORDER BY ").append(Events.TIMESTAMP)
+                    .append(" DESC LIMIT 1), ");
+        }
+        buf.append("NULL)");
+    }
+
+    /**
+     * Get a selection for intervals on a mobile operator. Operator codes are
+     * read from the dictionary table, which holds a few rows.
+     */
+    private static String operatorSelection(SQLiteDatabase db, MobileOperator op) {
+        final StringBuilder buf = new StringBuilder(64);
+        buf.append(DatabaseHelper.OPERATOR_ID).append(" IN (");
+        final Cursor c = db.query(DatabaseHelper.OPERATORS_TABLE, new String[] { Events._ID,
+                DatabaseHelper.OPERATOR_CODE }, null, null, null, null, null);
+        try {
+            boolean first = true;
+            while (c.moveToNext()) {
+                if (op.equals(MobileOperator.fromString(c.getString(1)))) {
+                    if (!first) {
+                        buf.append(", ");
+                    }
+                    buf.append(c.getLong(0));
+                    first = false;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return buf.append(")").toString();
+    }
+
+    private static String flagSelection(int flag) {
+        return "(" + DatabaseHelper.FLAGS + " & " + flag + ") != 0";
+    }
+
+    private static String sumIf(String selection) {
+        return "IFNULL(SUM(CASE WHEN " + selection + " THEN dt END), 0)";
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import static org.pixmob.freemobile.netstat.Constants.TAG;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+import org.pixmob.freemobile.netstat.util.IOUtils;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Store old events in compressed archive segments: a file for each monthly
+ * partition. Segments are immutable: when events are archived for a month
+ * which already has a segment, the segment is rewritten with every event.
+ * <p>
+ * A segment starts with a small header:
+ * <ul>
+ * <li>magic number and format version,</li>
+ * <li>partition key, event count, first and last event timestamps,</li>
+ * <li>mobile operator dictionary,</li>
+ * <li>length of the event data, before and after compression.</li>
+ * </ul>
+ * Event data is compressed with deflate, and stored by column. Event
+ * identifiers, timestamps and battery levels are stored as variable length
+ * deltas, flags as a byte for each event, and mobile operators as an index in
+ * the dictionary. Since events are sorted by timestamp, deltas are small and
+ * repeated values compress well.
+ * <p>
+ * A segment is written to a temporary file, which is synced to the storage
+ * before it replaces the segment: archived events are dropped from the
+ * database once the segment is durable. Java cannot sync a directory on this
+ * platform: the rename itself relies on the file system journal.
+ * @author Pixmob
+ */
+class EventArchive {
+    private static final int MAGIC = 0x4e534547;
+    private static final int VERSION = 1;
+    private static final String FILE_PREFIX = "events_";
+    private static final String FILE_SUFFIX = ".seg";
+    private final File dir;
+    private int[] segments;
+
+    public EventArchive(final File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Get existing segments, in chronological order. The returned array must
+     * not be modified.
+     */
+    public synchronized int[] getSegments() {
+        if (segments == null) {
+            final String[] files = dir.list();
+            final int[] result = new int[files == null ? 0 : files.length];
+            int count = 0;
+            for (int i = 0; i < result.length; ++i) {
+                final String file = files[i];
+                if (file.startsWith(FILE_PREFIX) && file.endsWith(FILE_SUFFIX)) {
+                    try {
+                        result[count] = Integer.parseInt(file.substring(FILE_PREFIX.length(), file.length()
+                                - FILE_SUFFIX.length()));
+                        ++count;
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Invalid archive segment: " + file);
+                    }
+                }
+            }
+            segments = new int[count];
+            System.arraycopy(result, 0, segments, 0, count);
+            Arrays.sort(segments);
+        }
+        return segments;
+    }
+
+    /**
+     * Get segments overlapping a time range, before the oldest live
+     * partition: archived months are older than live events.
+     * @param livePartitions partitions in the database, in chronological
+     *            order
+     * @param from range start (inclusive)
+     * @param to range end (exclusive)
+     */
+    public int[] getSegments(int[] livePartitions, long from, long to) {
+        final long archiveEnd = livePartitions.length == 0 ? to : Math.min(to,
+            EventPartitions.getPartitionStart(livePartitions[0]));
+        final int[] all = getSegments();
+        if (from >= archiveEnd || all.length == 0) {
+            return new int[0];
+        }
+        final int first = from == Long.MIN_VALUE ? Integer.MIN_VALUE : EventPartitions.getPartition(from);
+        final int last = archiveEnd == Long.MAX_VALUE ? Integer.MAX_VALUE : EventPartitions
+                .getPartition(archiveEnd - 1);
+        final int[] result = new int[all.length];
+        int count = 0;
+        for (final int segment : all) {
+            if (segment >= first && segment <= last) {
+                result[count++] = segment;
+            }
+        }
+        final int[] overlapping = new int[count];
+        System.arraycopy(result, 0, overlapping, 0, count);
+        return overlapping;
+    }
+
+    /**
+     * Archive events from a partition. The partition is not dropped.
+     * @return number of archived events
+     */
+    public synchronized int archive(SQLiteDatabase db, int partition) throws IOException {
+        final Segment segment = new Segment();
+        if (Arrays.binarySearch(getSegments(), partition) >= 0) {
+            // Archived events are read again, and rewritten with new events.
+            segment.read(getFile(partition));
+        }
+        final int archivedCount = segment.count;
+
+        final Cursor c = db.rawQuery("SELECT d." + Events._ID + ", d." + Events.TIMESTAMP + ", d."
+                + DatabaseHelper.FLAGS + ", o." + DatabaseHelper.OPERATOR_CODE + ", d." + Events.BATTERY_LEVEL
+                + " FROM " + EventPartitions.getTableName(partition) + " d LEFT JOIN "
+                + DatabaseHelper.OPERATORS_TABLE + " o ON o." + Events._ID + "=d." + DatabaseHelper.OPERATOR_ID
+                + " ORDER BY d." + Events.TIMESTAMP, null);
+        try {
+            segment.ensureCapacity(archivedCount + c.getCount());
+            while (c.moveToNext()) {
+                segment.add(c.getLong(0), c.getLong(1), c.getInt(2), c.getString(3), c.getInt(4));
+            }
+        } finally {
+            c.close();
+        }
+        if (archivedCount != 0) {
+            segment.sort();
+        }
+
+        final File file = getFile(partition);
+        final File tmpFile = new File(dir, file.getName() + ".tmp");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create archive directory: " + dir);
+        }
+        segment.write(tmpFile, partition);
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Cannot write archive segment: " + file);
+        }
+        segments = null;
+        return segment.count - archivedCount;
+    }
+
+    /**
+     * Get the greatest identifier of archived events.
+     * @return <code>0</code> if no event is archived
+     */
+    public synchronized long getMaxEventId() throws IOException {
+        long maxId = 0;
+        for (final int partition : getSegments()) {
+            final Segment segment = read(partition);
+            for (int i = 0; i < segment.count; ++i) {
+                if (segment.ids[i] > maxId) {
+                    maxId = segment.ids[i];
+                }
+            }
+        }
+        return maxId;
+    }
+
+    /**
+     * Read a segment.
+     */
+    public Segment read(int partition) throws IOException {
+        final Segment segment = new Segment();
+        segment.read(getFile(partition));
+        return segment;
+    }
+
+    /**
+     * Delete segments before a partition.
+     * @return number of deleted segments
+     */
+    public synchronized int delete(int beforePartition) {
+        int count = 0;
+        for (final int partition : getSegments()) {
+            if (partition >= beforePartition) {
+                break;
+            }
+            if (getFile(partition).delete()) {
+                ++count;
+            }
+        }
+        segments = null;
+        return count;
+    }
+
+    private File getFile(int partition) {
+        return new File(dir, FILE_PREFIX + partition + FILE_SUFFIX);
+    }
+
+    /**
+     * Events from an archive segment, sorted by timestamp. Values are stored
+     * by column.
+     * @author Pixmob
+     */
+    static class Segment {
+        int count;
+        long[] ids = new long[0];
+        long[] timestamps = new long[0];
+        int[] flags = new int[0];
+        int[] batteryLevels = new int[0];
+        /**
+         * Index in {@link #operators} for each event, or <code>-1</code>.
+         */
+        int[] operatorIndexes = new int[0];
+        String[] operators = new String[0];
+
+        /**
+         * Get the index of the first event at or after a given time.
+         */
+        int indexOf(long timestamp) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (timestamps[mid] < timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity <= ids.length) {
+                return;
+            }
+            ids = grow(ids, capacity);
+            timestamps = grow(timestamps, capacity);
+            flags = grow(flags, capacity);
+            batteryLevels = grow(batteryLevels, capacity);
+            operatorIndexes = grow(operatorIndexes, capacity);
+        }
+
+        void add(long id, long timestamp, int flags, String operator, int batteryLevel) {
+            ensureCapacity(count + 1);
+            ids[count] = id;
+            timestamps[count] = timestamp;
+            this.flags[count] = flags;
+            batteryLevels[count] = batteryLevel;
+            operatorIndexes[count] = getOperatorIndex(operator);
+            ++count;
+        }
+
+        private int getOperatorIndex(String operator) {
+            if (operator == null) {
+                return -1;
+            }
+            for (int i = 0; i < operators.length; ++i) {
+                if (operators[i].equals(operator)) {
+                    return i;
+                }
+            }
+            final String[] newOperators = new String[operators.length + 1];
+            System.arraycopy(operators, 0, newOperators, 0, operators.length);
+            newOperators[operators.length] = operator;
+            operators = newOperators;
+            return operators.length - 1;
+        }
+
+        /**
+         * Sort events by timestamp. Events are mostly sorted: an insertion
+         * sort is used.
+         */
+        void sort() {
+            for (int i = 1; i < count; ++i) {
+                final long id = ids[i];
+                final long timestamp = timestamps[i];
+                final int flag = flags[i];
+                final int batteryLevel = batteryLevels[i];
+                final int operatorIndex = operatorIndexes[i];
+                int j = i - 1;
+                for (; j >= 0 && timestamps[j] > timestamp; --j) {
+                    ids[j + 1] = ids[j];
+                    timestamps[j + 1] = timestamps[j];
+                    flags[j + 1] = flags[j];
+                    batteryLevels[j + 1] = batteryLevels[j];
+                    operatorIndexes[j + 1] = operatorIndexes[j];
+                }
+                ids[j + 1] = id;
+                timestamps[j + 1] = timestamp;
+                flags[j + 1] = flag;
+                batteryLevels[j + 1] = batteryLevel;
+                operatorIndexes[j + 1] = operatorIndex;
+            }
+        }
+
+        void write(File file, int partition) throws IOException {
+            final ByteArrayOutputStream columns = new ByteArrayOutputStream(count * 8);
+            long last = 0;
+            for (int i = 0; i < count; ++i) {
+                writeVarLong(columns, zigzag(ids[i] - last));
+                last = ids[i];
+            }
+            last = count == 0 ? 0 : timestamps[0];
+            writeVarLong(columns, last);
+            for (int i = 1; i < count; ++i) {
+                writeVarLong(columns, timestamps[i] - last);
+                last = timestamps[i];
+            }
+            for (int i = 0; i < count; ++i) {
+                columns.write(flags[i]);
+            }
+            for (int i = 0; i < count; ++i) {
+                writeVarLong(columns, operatorIndexes[i] + 1);
+            }
+            last = 0;
+            for (int i = 0; i < count; ++i) {
+                writeVarLong(columns, zigzag(batteryLevels[i] - last));
+                last = batteryLevels[i];
+            }
+
+            final byte[] data = columns.toByteArray();
+            final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            final byte[] compressed;
+            int compressedLength = 0;
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                byte[] buf = new byte[data.length / 2 + 64];
+                while (!deflater.finished()) {
+                    if (compressedLength == buf.length) {
+                        final byte[] newBuf = new byte[buf.length * 2];
+                        System.arraycopy(buf, 0, newBuf, 0, compressedLength);
+                        buf = newBuf;
+                    }
+                    compressedLength += deflater.deflate(buf, compressedLength, buf.length - compressedLength);
+                }
+                compressed = buf;
+            } finally {
+                deflater.end();
+            }
+
+            final FileOutputStream fileOut = new FileOutputStream(file);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            try {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeInt(partition);
+                out.writeInt(count);
+                out.writeLong(count == 0 ? 0 : timestamps[0]);
+                out.writeLong(count == 0 ? 0 : timestamps[count - 1]);
+                out.writeShort(operators.length);
+                for (final String operator : operators) {
+                    out.writeUTF(operator);
+                }
+                out.writeInt(data.length);
+                out.writeInt(compressedLength);
+                out.write(compressed, 0, compressedLength);
+                out.flush();
+                // The segment must be on the storage before it is renamed,
+                // and before archived events are dropped.
+                fileOut.getFD().sync();
+            } finally {
+                IOUtils.close(out);
+            }
+        }
+
+        void read(File file) throws IOException {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            final byte[] data;
+            try {
+                if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                    throw new IOException("Invalid archive segment: " + file);
+                }
+                in.readInt();
+                count = in.readInt();
+                // Skip first and last timestamps.
+                in.readLong();
+                in.readLong();
+                operators = new String[in.readShort()];
+                for (int i = 0; i < operators.length; ++i) {
+                    operators[i] = in.readUTF();
+                }
+                data = new byte[in.readInt()];
+                final byte[] compressed = new byte[in.readInt()];
+                in.readFully(compressed);
+
+                final Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(compressed);
+                    int length = 0;
+                    while (length < data.length) {
+                        final int n = inflater.inflate(data, length, data.length - length);
+                        if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                            throw new IOException("Truncated archive segment: " + file);
+                        }
+                        length += n;
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupted archive segment: " + file);
+                } finally {
+                    inflater.end();
+                }
+            } finally {
+                IOUtils.close(in);
+            }
+
+            ids = new long[count];
+            timestamps = new long[count];
+            flags = new int[count];
+            operatorIndexes = new int[count];
+            batteryLevels = new int[count];
+            final int[] pos = { 0 };
+            long last = 0;
+            for (int i = 0; i < count; ++i) {
+                last += unzigzag(readVarLong(data, pos));
+                ids[i] = last;
+            }
+            last = 0;
+            for (int i = 0; i < count; ++i) {
+                last += readVarLong(data, pos);
+                timestamps[i] = last;
+            }
+            for (int i = 0; i < count; ++i) {
+                flags[i] = data[pos[0]++] & 0xff;
+            }
+            for (int i = 0; i < count; ++i) {
+                operatorIndexes[i] = (int) readVarLong(data, pos) - 1;
+            }
+            last = 0;
+            for (int i = 0; i < count; ++i) {
+                last += unzigzag(readVarLong(data, pos));
+                batteryLevels[i] = (int) last;
+            }
+        }
+
+        private static long[] grow(long[] array, int capacity) {
+            final long[] newArray = new long[Math.max(capacity, array.length * 2)];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            return newArray;
+        }
+
+        private static int[] grow(int[] array, int capacity) {
+            final int[] newArray = new int[Math.max(capacity, array.length * 2)];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            return newArray;
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private static void writeVarLong(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        private static long readVarLong(byte[] data, int[] pos) {
+            long value = 0;
+            for (int shift = 0;; shift += 7) {
+                final int b = data[pos[0]++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.content.NetstatContract.BatteryLevels;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Maintain battery levels downsampled at several resolutions, so that charts
+ * read about one point per pixel whatever the time range is. The minimum and
+ * maximum battery levels are kept for each bucket: short spikes are not lost.
+ * Buckets start at UTC boundaries, and are updated when an event is inserted.
+ * Since minimum and maximum values do not depend on the event order, events
+ * may be inserted in any order. Battery levels are kept when old events are
+ * deleted. This class is thread-safe.
+ * @author Pixmob
+ */
+class EventBatteryLevels {
+    /**
+     * Downsampled resolutions, from the finest to the coarsest.
+     */
+    static final long[] RESOLUTIONS = { BatteryLevels.RESOLUTION_MINUTE, BatteryLevels.RESOLUTION_10_MINUTES,
+            BatteryLevels.RESOLUTION_HOUR };
+    private static final String[] TABLES = { "battery_levels_1m", "battery_levels_10m", "battery_levels_1h" };
+    private final EventPartitions partitions;
+    private SQLiteDatabase db;
+    private final SQLiteStatement[] insertStatements = new SQLiteStatement[RESOLUTIONS.length];
+    private final SQLiteStatement[] updateStatements = new SQLiteStatement[RESOLUTIONS.length];
+
+    public EventBatteryLevels(final EventPartitions partitions) {
+        this.partitions = partitions;
+    }
+
+    /**
+     * Create battery level tables.
+     */
+    public static void createTables(SQLiteDatabase db) {
+        for (final String table : TABLES) {
+            db.execSQL("CREATE TABLE " + table + " (" + BatteryLevels.BUCKET_START + " INTEGER PRIMARY KEY, "
+                    + BatteryLevels.MIN_LEVEL + " INTEGER NOT NULL, " + BatteryLevels.MAX_LEVEL
+                    + " INTEGER NOT NULL)");
+        }
+    }
+
+    /**
+     * Get the table holding battery levels at a given resolution.
+     * @return <code>null</code> if this resolution is not supported
+     */
+    public static String getTableName(long resolution) {
+        for (int i = 0; i < RESOLUTIONS.length; ++i) {
+            if (RESOLUTIONS[i] == resolution) {
+                return TABLES[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the table or subquery holding battery levels in a time range, at a
+     * given resolution, with the columns defined in {@link BatteryLevels}.
+     * Raw battery levels are only read from partitions overlapping the time
+     * range.
+     * @param from range start (inclusive)
+     * @param to range end (exclusive)
+     * @throws IllegalArgumentException if this resolution is not supported
+     */
+    public static String buildSource(SQLiteDatabase db, EventPartitions partitions, long from, long to,
+            long resolution) {
+        if (resolution == BatteryLevels.RESOLUTION_RAW) {
+            return "(" + buildRawQuery(partitions.getPartitions(db, from, to)) + ")";
+        }
+        final String table = getTableName(resolution);
+        if (table == null) {
+            throw new IllegalArgumentException("Unsupported resolution: " + resolution);
+        }
+        return table;
+    }
+
+    /**
+     * Get a query selecting raw battery levels from some partitions, with the
+     * columns defined in {@link BatteryLevels}.
+     */
+    public static String buildRawQuery(int[] partitions) {
+        if (partitions.length == 0) {
+            return "SELECT NULL AS " + BatteryLevels.BUCKET_START + ", NULL AS " + BatteryLevels.MIN_LEVEL
+                    + ", NULL AS " + BatteryLevels.MAX_LEVEL + " WHERE 0";
+        }
+        final StringBuilder buf = new StringBuilder(128 * partitions.length);
+        for (int i = 0; i < partitions.length; ++i) {
+            if (i != 0) {
+                buf.append(" UNION ALL ");
+            }
+            buf.append("SELECT ").append(Events.TIMESTAMP).append(" AS ").append(BatteryLevels.BUCKET_START)
+                    .append(", ").append(Events.BATTERY_LEVEL).append(" AS ").append(BatteryLevels.MIN_LEVEL)
+                    .append(", ").append(Events.BATTERY_LEVEL).append(" AS ").append(BatteryLevels.MAX_LEVEL)
+                    .append(" FROM ").append(EventPartitions.getTableName(partitions[i]));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Add an event to battery levels. The event must have been inserted in
+     * the current transaction.
+     */
+    public synchronized void add(SQLiteDatabase db, Event e) {
+        prepareStatements(db);
+        for (int i = 0; i < RESOLUTIONS.length; ++i) {
+            final long bucket = getBucketStart(e.timestamp, RESOLUTIONS[i]);
+            final SQLiteStatement insert = insertStatements[i];
+            insert.bindLong(1, bucket);
+            insert.bindLong(2, e.batteryLevel);
+            insert.bindLong(3, e.batteryLevel);
+            insert.execute();
+            // The bucket may already exist: an ignored insert cannot be
+            // detected before Honeycomb, so the bucket is always updated.
+            // Updating a new bucket with the same level does not change it.
+            final SQLiteStatement update = updateStatements[i];
+            update.bindLong(1, e.batteryLevel);
+            update.bindLong(2, e.batteryLevel);
+            update.bindLong(3, bucket);
+            update.execute();
+        }
+    }
+
+    /**
+     * Rebuild battery levels from events in the database. Buckets before the
+     * first event are kept.
+     */
+    public synchronized void rebuild(SQLiteDatabase db) {
+        final long first = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN(" + Events.TIMESTAMP + "), -1) FROM "
+                + DatabaseHelper.EVENTS_TABLE, null);
+        if (first == -1) {
+            return;
+        }
+        for (int i = 0; i < RESOLUTIONS.length; ++i) {
+            final long resolution = RESOLUTIONS[i];
+            final long from = getBucketStart(first, resolution);
+            db.delete(TABLES[i], BatteryLevels.BUCKET_START + ">=?", new String[] { String.valueOf(from) });
+            db.execSQL("INSERT INTO " + TABLES[i] + " SELECT (" + BatteryLevels.BUCKET_START + " / " + resolution
+                    + ") * " + resolution + ", MIN(" + BatteryLevels.MIN_LEVEL + "), MAX(" + BatteryLevels.MAX_LEVEL
+                    + ") FROM (" + buildRawQuery(partitions.getPartitions(db)) + ") WHERE "
+                    + BatteryLevels.BUCKET_START + ">=? GROUP BY 1", new Object[] { from });
+        }
+    }
+
+    /**
+     * Release compiled statements, which are compiled again when needed.
+     */
+    public synchronized void clear() {
+        if (insertStatements[0] != null) {
+            for (int i = 0; i < RESOLUTIONS.length; ++i) {
+                insertStatements[i].close();
+                updateStatements[i].close();
+                insertStatements[i] = null;
+                updateStatements[i] = null;
+            }
+        }
+        db = null;
+    }
+
+    private static long getBucketStart(long timestamp, long resolution) {
+        final long r = timestamp % resolution;
+        return timestamp - (r < 0 ? r + resolution : r);
+    }
+
+    private void prepareStatements(SQLiteDatabase db) {
+        if (db == this.db && insertStatements[0] != null) {
+            return;
+        }
+        clear();
+        this.db = db;
+        for (int i = 0; i < RESOLUTIONS.length; ++i) {
+            insertStatements[i] = db.compileStatement("INSERT OR IGNORE INTO " + TABLES[i] + " ("
+                    + BatteryLevels.BUCKET_START + ", " + BatteryLevels.MIN_LEVEL + ", " + BatteryLevels.MAX_LEVEL
+                    + ") VALUES (?, ?, ?)");
+            updateStatements[i] = db.compileStatement("UPDATE " + TABLES[i] + " SET " + BatteryLevels.MIN_LEVEL
+                    + "=MIN(" + BatteryLevels.MIN_LEVEL + ", ?), " + BatteryLevels.MAX_LEVEL + "=MAX("
+                    + BatteryLevels.MAX_LEVEL + ", ?) WHERE " + BatteryLevels.BUCKET_START + "=?");
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+import org.pixmob.freemobile.netstat.content.NetstatContract.StateIntervals;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Maintain state intervals, where consecutive events sharing the same state
+ * are stored as a single row. The state of an interval between two events is
+ * the state found at both ends: this is how durations are computed from raw
+ * events. Since most events only differ by their battery level, durations are
+ * read from a few intervals instead of every event.
+ * <p>
+ * Intervals are stored in a compact format, like events: the
+ * {@link #INTERVALS_VIEW} view exposes the columns defined in
+ * {@link StateIntervals}. Intervals are kept when old events are deleted. This
+ * class is thread-safe.
+ * @author Pixmob
+ */
+class EventIntervals {
+    /**
+     * View for reading intervals, with the columns defined in
+     * {@link StateIntervals}.
+     */
+    static final String INTERVALS_VIEW = "state_intervals";
+    static final String INTERVAL_DATA_TABLE = "state_interval_data";
+    private static final int STATE_FLAGS = Event.FLAG_SCREEN_ON | Event.FLAG_WIFI_CONNECTED
+            | Event.FLAG_MOBILE_CONNECTED;
+    private final EventPartitions partitions;
+    private boolean lastLoaded;
+    private boolean hasLast;
+    private long lastTimestamp;
+    private int lastFlags;
+    private long lastOperatorId;
+    private boolean hasLastInterval;
+    private long lastIntervalId;
+    private long lastIntervalEnd;
+    private int lastIntervalFlags;
+    private long lastIntervalOperatorId;
+    private SQLiteDatabase db;
+    private SQLiteStatement insertStatement;
+    private SQLiteStatement extendStatement;
+
+    public EventIntervals(final EventPartitions partitions) {
+        this.partitions = partitions;
+    }
+
+    /**
+     * Create interval tables.
+     */
+    public static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + INTERVAL_DATA_TABLE + " (" + StateIntervals._ID + " INTEGER PRIMARY KEY, "
+                + StateIntervals.START + " INTEGER NOT NULL, " + StateIntervals.END + " INTEGER NOT NULL, "
+                + DatabaseHelper.FLAGS + " INTEGER NOT NULL, " + DatabaseHelper.OPERATOR_ID + " INTEGER)");
+        // Intervals overlapping a time range are read from this index only.
+        db.execSQL("CREATE INDEX " + INTERVAL_DATA_TABLE + "_end ON " + INTERVAL_DATA_TABLE + " ("
+                + StateIntervals.END + ", " + StateIntervals.START + ", " + DatabaseHelper.FLAGS + ", "
+                + DatabaseHelper.OPERATOR_ID + ")");
+        db.execSQL("CREATE VIEW " + INTERVALS_VIEW + " AS SELECT d." + StateIntervals._ID + " AS "
+                + StateIntervals._ID + ", d." + StateIntervals.START + " AS " + StateIntervals.START + ", d."
+                + StateIntervals.END + " AS " + StateIntervals.END + ", " + flagColumn(Event.FLAG_MOBILE_CONNECTED)
+                + " AS " + StateIntervals.MOBILE_CONNECTED + ", o." + DatabaseHelper.OPERATOR_CODE + " AS "
+                + StateIntervals.MOBILE_OPERATOR + ", " + flagColumn(Event.FLAG_WIFI_CONNECTED) + " AS "
+                + StateIntervals.WIFI_CONNECTED + ", " + flagColumn(Event.FLAG_SCREEN_ON) + " AS "
+                + StateIntervals.SCREEN_ON + ", " + flagColumn(Event.FLAG_POWER_ON) + " AS "
+                + StateIntervals.POWER_ON + " FROM " + INTERVAL_DATA_TABLE + " d LEFT JOIN "
+                + DatabaseHelper.OPERATORS_TABLE + " o ON o." + Events._ID + "=d." + DatabaseHelper.OPERATOR_ID);
+    }
+
+    /**
+     * Get a selection for intervals overlapping a time range.
+     * @param from range start (inclusive)
+     * @param to range end (exclusive)
+     */
+    public static String buildRangeSelection(long from, long to) {
+        return StateIntervals.END + ">" + from + " AND " + StateIntervals.START + "<" + to;
+    }
+
+    /**
+     * Add an event to intervals. The event must have been inserted in the
+     * current transaction. If the event is older than the last event,
+     * intervals are not updated and must be rebuilt from this event with
+     * {@link #rebuild(SQLiteDatabase, long)}.
+     * @param operatorId mobile operator identifier, or <code>-1</code>
+     * @return <code>false</code> if intervals must be rebuilt
+     */
+    public synchronized boolean add(SQLiteDatabase db, Event e, long operatorId) {
+        if (!lastLoaded) {
+            loadLast(db, e.timestamp);
+        }
+        if (hasLast && e.timestamp < lastTimestamp) {
+            return false;
+        }
+        add(db, e.timestamp, e.flags(), operatorId);
+        return true;
+    }
+
+    /**
+     * Rebuild intervals from events in the database. Intervals before the
+     * first event are kept.
+     */
+    public synchronized void rebuild(SQLiteDatabase db) {
+        final long first = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN(" + Events.TIMESTAMP + "), -1) FROM "
+                + DatabaseHelper.EVENTS_TABLE, null);
+        if (first == -1) {
+            hasLast = false;
+            loadLastInterval(db);
+            lastLoaded = true;
+            return;
+        }
+        rebuild(db, first);
+    }
+
+    /**
+     * Rebuild intervals after events were inserted before the last event.
+     * Intervals are derived again from the event preceding the oldest
+     * inserted event: older intervals are kept.
+     * @param from timestamp of the oldest inserted event
+     */
+    public synchronized void rebuild(SQLiteDatabase db, long from) {
+        // The interval holding the inserted event is split at this event: it
+        // is truncated at the previous event, which is added again.
+        loadLast(db, from);
+        final long start = hasLast ? lastTimestamp : from;
+        final String[] args = { String.valueOf(start) };
+        db.delete(INTERVAL_DATA_TABLE, StateIntervals.START + ">=?", args);
+        db.execSQL("UPDATE " + INTERVAL_DATA_TABLE + " SET " + StateIntervals.END + "=? WHERE " + StateIntervals.END
+                + ">?", new Object[] { start, start });
+        loadLastInterval(db);
+
+        final Cursor c = db.rawQuery(buildEventQuery(partitions.getPartitions(db, from, Long.MAX_VALUE))
+                + " WHERE " + Events.TIMESTAMP + ">=? ORDER BY " + Events.TIMESTAMP + " ASC",
+            new String[] { String.valueOf(from) });
+        try {
+            while (c.moveToNext()) {
+                add(db, c.getLong(0), c.getInt(1), c.isNull(2) ? -1 : c.getLong(2));
+            }
+            lastLoaded = true;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Clear cached state, which is read again from the database when needed.
+     * This method must be called when a transaction fails, or when events are
+     * deleted.
+     */
+    public synchronized void clear() {
+        lastLoaded = false;
+        hasLast = false;
+        hasLastInterval = false;
+        closeStatements();
+    }
+
+    private void add(SQLiteDatabase db, long timestamp, int flags, long operatorId) {
+        if (hasLast) {
+            addInterval(db, timestamp, flags, operatorId);
+        }
+        hasLast = true;
+        lastTimestamp = timestamp;
+        lastFlags = flags;
+        lastOperatorId = operatorId;
+    }
+
+    private void addInterval(SQLiteDatabase db, long timestamp, int flags, long operatorId) {
+        int intervalFlags = lastFlags & flags & STATE_FLAGS;
+        if ((flags & Event.FLAG_POWER_ON) == 0 || (lastFlags & Event.FLAG_POWER_ON) != 0) {
+            // The device was not off.
+            intervalFlags |= Event.FLAG_POWER_ON;
+        }
+        final long intervalOperatorId = operatorId == lastOperatorId ? operatorId : -1;
+
+        prepareStatements(db);
+        if (hasLastInterval && lastIntervalEnd == lastTimestamp && lastIntervalFlags == intervalFlags
+                && lastIntervalOperatorId == intervalOperatorId) {
+            // The state did not change: the last interval is extended.
+            extendStatement.bindLong(1, timestamp);
+            extendStatement.bindLong(2, lastIntervalId);
+            extendStatement.execute();
+        } else {
+            insertStatement.bindLong(1, lastTimestamp);
+            insertStatement.bindLong(2, timestamp);
+            insertStatement.bindLong(3, intervalFlags);
+            if (intervalOperatorId == -1) {
+                insertStatement.bindNull(4);
+            } else {
+                insertStatement.bindLong(4, intervalOperatorId);
+            }
+            lastIntervalId = insertStatement.executeInsert();
+            lastIntervalFlags = intervalFlags;
+            lastIntervalOperatorId = intervalOperatorId;
+            hasLastInterval = true;
+        }
+        lastIntervalEnd = timestamp;
+    }
+
+    private void loadLast(SQLiteDatabase db, long before) {
+        final Cursor c = db.rawQuery(buildEventQuery(partitions.getPartitions(db, Long.MIN_VALUE, before + 1))
+                + " WHERE " + Events.TIMESTAMP + "<? ORDER BY " + Events.TIMESTAMP + " DESC LIMIT 1",
+            new String[] { String.valueOf(before) });
+        try {
+            hasLast = c.moveToNext();
+            if (hasLast) {
+                lastTimestamp = c.getLong(0);
+                lastFlags = c.getInt(1);
+                lastOperatorId = c.isNull(2) ? -1 : c.getLong(2);
+            }
+        } finally {
+            c.close();
+        }
+        loadLastInterval(db);
+        lastLoaded = true;
+    }
+
+    private void loadLastInterval(SQLiteDatabase db) {
+        final Cursor c = db.query(INTERVAL_DATA_TABLE, new String[] { StateIntervals._ID, StateIntervals.END,
+                DatabaseHelper.FLAGS, DatabaseHelper.OPERATOR_ID }, null, null, null, null, StateIntervals.END
+                + " DESC", "1");
+        try {
+            hasLastInterval = c.moveToNext();
+            if (hasLastInterval) {
+                lastIntervalId = c.getLong(0);
+                lastIntervalEnd = c.getLong(1);
+                lastIntervalFlags = c.getInt(2);
+                lastIntervalOperatorId = c.isNull(3) ? -1 : c.getLong(3);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private void prepareStatements(SQLiteDatabase db) {
+        if (db == this.db && insertStatement != null) {
+            return;
+        }
+        closeStatements();
+        this.db = db;
+        insertStatement = db.compileStatement("INSERT INTO " + INTERVAL_DATA_TABLE + " (" + StateIntervals.START
+                + ", " + StateIntervals.END + ", " + DatabaseHelper.FLAGS + ", " + DatabaseHelper.OPERATOR_ID
+                + ") VALUES (?, ?, ?, ?)");
+        extendStatement = db.compileStatement("UPDATE " + INTERVAL_DATA_TABLE + " SET " + StateIntervals.END
+                + "=? WHERE " + StateIntervals._ID + "=?");
+    }
+
+    private void closeStatements() {
+        if (insertStatement != null) {
+            insertStatement.close();
+            extendStatement.close();
+            insertStatement = null;
+            extendStatement = null;
+        }
+        db = null;
+    }
+
+    /**
+     * Get a query selecting the timestamp, flags and mobile operator
+     * identifier of events stored in some partitions, without any join.
+     */
+    private static String buildEventQuery(int[] partitions) {
+        if (partitions.length == 0) {
+            return "SELECT * FROM (SELECT NULL AS " + Events.TIMESTAMP + ", NULL AS " + DatabaseHelper.FLAGS
+                    + ", NULL AS " + DatabaseHelper.OPERATOR_ID + " WHERE 0)";
+        }
+        final StringBuilder buf = new StringBuilder(96 * partitions.length + 16);
+        buf.append("SELECT * FROM (");
+        for (int i = 0; i < partitions.length; ++i) {
+            if (i != 0) {
+                buf.append(" UNION ALL ");
+            }
+            buf.append("SELECT ").append(Events.TIMESTAMP).append(", ").append(DatabaseHelper.FLAGS).append(", ")
+                    .append(DatabaseHelper.OPERATOR_ID).append(" FROM ")
+                    .append(EventPartitions.getTableName(partitions[i]));
+        }
+        return buf.append(")").toString();
+    }
+
+    private static String flagColumn(int flag) {
+        return "((d." + DatabaseHelper.FLAGS + " & " + flag + ") != 0)";
+    }
+}
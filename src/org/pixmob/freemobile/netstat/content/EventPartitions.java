@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import static org.pixmob.freemobile.netstat.Constants.TAG;
+
+import java.util.Arrays;
+
+import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Events are stored in monthly partitions: each partition is a table holding
+ * events for a month (UTC time). Old events are removed by dropping whole
+ * partitions, and queries on a time range only read overlapping partitions.
+ * Event identifiers are unique across partitions, and are never reused: the
+ * greatest identifier ever allocated is stored in the
+ * {@link #SEQUENCE_TABLE} table, so that identifiers of deleted, dropped or
+ * archived events are not allocated again.
+ * <p>
+ * The {@link DatabaseHelper#EVENTS_TABLE} view is the union of every
+ * partition: it is rebuilt when a partition is created or dropped.
+ * @author Pixmob
+ */
+class EventPartitions {
+    /**
+     * Table with a single row, holding the greatest event identifier ever
+     * allocated.
+     */
+    static final String SEQUENCE_TABLE = "event_sequence";
+    static final String LAST_ID = "last_id";
+    private static final String TABLE_PREFIX = DatabaseHelper.EVENT_DATA_TABLE + "_";
+    private static final long DAY = 86400 * 1000;
+    private int[] partitions;
+    private long nextEventId;
+    private long savedEventId;
+
+    /**
+     * Get the partition holding events at a given time.
+     * @return partition key, as <code>yyyyMM</code>
+     */
+    public static int getPartition(long timestamp) {
+        // Convert days since epoch to a civil date, without allocating any
+        // object: see http://howardhinnant.github.io/date_algorithms.html
+        long days = timestamp / DAY;
+        if (timestamp % DAY < 0) {
+            --days;
+        }
+        days += 719468;
+        final long era = (days >= 0 ? days : days - 146096) / 146097;
+        final long dayOfEra = days - era * 146097;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long mp = (5 * dayOfYear + 2) / 153;
+        final long month = mp < 10 ? mp + 3 : mp - 9;
+        final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return (int) (year * 100 + month);
+    }
+
+    /**
+     * Get the time when a partition starts (inclusive).
+     */
+    public static long getPartitionStart(int partition) {
+        long year = partition / 100;
+        final long month = partition % 100;
+        year -= month <= 2 ? 1 : 0;
+        final long era = (year >= 0 ? year : year - 399) / 400;
+        final long yearOfEra = year - era * 400;
+        final long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return (era * 146097 + dayOfEra - 719468) * DAY;
+    }
+
+    /**
+     * Get the time when a partition ends (exclusive).
+     */
+    public static long getPartitionEnd(int partition) {
+        final int month = partition % 100;
+        return getPartitionStart(month == 12 ? partition + 100 - 11 : partition + 1);
+    }
+
+    public static String getTableName(int partition) {
+        return TABLE_PREFIX + partition;
+    }
+
+    /**
+     * Get existing partitions, in chronological order. The returned array
+     * must not be modified.
+     */
+    public synchronized int[] getPartitions(SQLiteDatabase db) {
+        if (partitions == null) {
+            final Cursor c = db.query("sqlite_master", new String[] { "name" }, "type='table' AND name LIKE ?",
+                    new String[] { TABLE_PREFIX + "%" }, null, null, null);
+            try {
+                final int[] result = new int[c.getCount()];
+                int count = 0;
+                while (c.moveToNext()) {
+                    try {
+                        result[count] = Integer.parseInt(c.getString(0).substring(TABLE_PREFIX.length()));
+                        ++count;
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Invalid partition table: " + c.getString(0));
+                    }
+                }
+                partitions = new int[count];
+                System.arraycopy(result, 0, partitions, 0, count);
+                Arrays.sort(partitions);
+            } finally {
+                c.close();
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Get partitions overlapping a time range.
+     * @param from range start (inclusive)
+     * @param to range end (exclusive)
+     */
+    public int[] getPartitions(SQLiteDatabase db, long from, long to) {
+        final int[] all = getPartitions(db);
+        if (from >= to) {
+            return new int[0];
+        }
+        final int first = from == Long.MIN_VALUE ? Integer.MIN_VALUE : getPartition(from);
+        final int last = to == Long.MAX_VALUE ? Integer.MAX_VALUE : getPartition(to - 1);
+        int start = 0;
+        while (start < all.length && all[start] < first) {
+            ++start;
+        }
+        int end = start;
+        while (end < all.length && all[end] <= last) {
+            ++end;
+        }
+        final int[] result = new int[end - start];
+        System.arraycopy(all, start, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Create a partition if it does not exist.
+     */
+    public synchronized void ensurePartition(SQLiteDatabase db, int partition) {
+        final int[] all = getPartitions(db);
+        if (Arrays.binarySearch(all, partition) >= 0) {
+            return;
+        }
+
+        final String table = getTableName(partition);
+        db.execSQL("CREATE TABLE " + table + " (" + Events._ID + " INTEGER PRIMARY KEY, " + Events.TIMESTAMP
+                + " INTEGER NOT NULL, " + DatabaseHelper.FLAGS + " INTEGER NOT NULL, "
+                + DatabaseHelper.OPERATOR_ID + " INTEGER, " + Events.BATTERY_LEVEL + " INTEGER NOT NULL)");
+        // Statistics queries are served from this index only.
+        db.execSQL("CREATE INDEX " + table + "_timestamp ON " + table + " (" + Events.TIMESTAMP + ", "
+                + DatabaseHelper.FLAGS + ", " + DatabaseHelper.OPERATOR_ID + ", " + Events.BATTERY_LEVEL + ")");
+
+        final int[] newPartitions = new int[all.length + 1];
+        System.arraycopy(all, 0, newPartitions, 0, all.length);
+        newPartitions[all.length] = partition;
+        Arrays.sort(newPartitions);
+        partitions = newPartitions;
+        createView(db, newPartitions);
+    }
+
+    /**
+     * Drop a partition, removing every event it holds.
+     */
+    public synchronized void dropPartition(SQLiteDatabase db, int partition) {
+        final int[] all = getPartitions(db);
+        final int i = Arrays.binarySearch(all, partition);
+        if (i < 0) {
+            return;
+        }
+
+        db.execSQL("DROP TABLE " + getTableName(partition));
+
+        final int[] newPartitions = new int[all.length - 1];
+        System.arraycopy(all, 0, newPartitions, 0, i);
+        System.arraycopy(all, i + 1, newPartitions, i, all.length - i - 1);
+        partitions = newPartitions;
+        createView(db, newPartitions);
+    }
+
+    /**
+     * Create the {@link #SEQUENCE_TABLE} table, starting after the greatest
+     * identifier of existing events.
+     */
+    static void createSequenceTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SEQUENCE_TABLE + " (" + LAST_ID + " INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO " + SEQUENCE_TABLE + " SELECT IFNULL(MAX(" + Events._ID + "), 0) FROM "
+                + DatabaseHelper.EVENTS_TABLE);
+    }
+
+    /**
+     * Allocate a new event identifier. Allocated identifiers must be saved
+     * with {@link #saveEventId(SQLiteDatabase)} in the same transaction.
+     */
+    public synchronized long nextEventId(SQLiteDatabase db) {
+        if (nextEventId == 0) {
+            savedEventId = DatabaseUtils.longForQuery(db, "SELECT " + LAST_ID + " FROM " + SEQUENCE_TABLE, null);
+            nextEventId = savedEventId + 1;
+        }
+        return nextEventId++;
+    }
+
+    /**
+     * Save the greatest allocated event identifier. This method must be called
+     * in the transaction inserting events, before it is committed.
+     */
+    public synchronized void saveEventId(SQLiteDatabase db) {
+        if (nextEventId - 1 > savedEventId) {
+            db.execSQL("UPDATE " + SEQUENCE_TABLE + " SET " + LAST_ID + "=?", new Object[] { nextEventId - 1 });
+            savedEventId = nextEventId - 1;
+        }
+    }
+
+    /**
+     * Make sure an identifier is not allocated for a new event.
+     */
+    public synchronized void reserveEventId(SQLiteDatabase db, long id) {
+        nextEventId(db);
+        if (id >= nextEventId) {
+            nextEventId = id + 1;
+        }
+    }
+
+    /**
+     * Clear cached state, which is read again from the database when needed.
+     * This method must be called when a transaction fails.
+     */
+    public synchronized void clear() {
+        partitions = null;
+        nextEventId = 0;
+        savedEventId = 0;
+    }
+
+    /**
+     * Get a query selecting events from some partitions, with the columns
+     * defined in {@link Events}.
+     */
+    public static String buildQuery(int[] partitions) {
+        return buildQuery(partitions, null);
+    }
+
+    /**
+     * Get a query selecting events from some partitions, with the columns
+     * defined in {@link Events}.
+     * @param partitionSelection selection applied to each partition table,
+     *            aliased as <code>d</code>: may be <code>null</code>
+     */
+    public static String buildQuery(int[] partitions, String partitionSelection) {
+        if (partitions.length == 0) {
+            return "SELECT NULL AS " + Events._ID + ", NULL AS " + Events.TIMESTAMP + ", NULL AS "
+                    + Events.MOBILE_CONNECTED + ", NULL AS " + Events.MOBILE_OPERATOR + ", NULL AS "
+                    + Events.WIFI_CONNECTED + ", NULL AS " + Events.BATTERY_LEVEL + ", NULL AS "
+                    + Events.SCREEN_ON + ", NULL AS " + Events.POWER_ON + " WHERE 0";
+        }
+
+        final StringBuilder buf = new StringBuilder(512 * partitions.length);
+        for (int i = 0; i < partitions.length; ++i) {
+            if (i != 0) {
+                buf.append(" UNION ALL ");
+            }
+            buf.append(buildQuery(partitions[i]));
+            if (partitionSelection != null) {
+                buf.append(" WHERE ").append(partitionSelection);
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Get a query selecting events from a partition, with the columns defined
+     * in {@link Events}.
+     */
+    public static String buildQuery(int partition) {
+        return "SELECT d." + Events._ID + " AS " + Events._ID + ", d." + Events.TIMESTAMP + " AS "
+                + Events.TIMESTAMP + ", " + flagColumn(Event.FLAG_MOBILE_CONNECTED) + " AS "
+                + Events.MOBILE_CONNECTED + ", o." + DatabaseHelper.OPERATOR_CODE + " AS " + Events.MOBILE_OPERATOR
+                + ", " + flagColumn(Event.FLAG_WIFI_CONNECTED) + " AS " + Events.WIFI_CONNECTED + ", d."
+                + Events.BATTERY_LEVEL + " AS " + Events.BATTERY_LEVEL + ", " + flagColumn(Event.FLAG_SCREEN_ON)
+                + " AS " + Events.SCREEN_ON + ", " + flagColumn(Event.FLAG_POWER_ON) + " AS " + Events.POWER_ON
+                + " FROM " + getTableName(partition) + " d LEFT JOIN " + DatabaseHelper.OPERATORS_TABLE + " o ON o."
+                + Events._ID + "=d." + DatabaseHelper.OPERATOR_ID;
+    }
+
+    /**
+     * Get a statement inserting an event into a partition. Bound values are
+     * the event identifier, timestamp, flags, mobile operator identifier and
+     * battery level.
+     */
+    public static String buildInsert(int partition) {
+        return "INSERT INTO " + getTableName(partition) + " (" + Events._ID + ", " + Events.TIMESTAMP + ", "
+                + DatabaseHelper.FLAGS + ", " + DatabaseHelper.OPERATOR_ID + ", " + Events.BATTERY_LEVEL
+                + ") VALUES (?, ?, ?, ?, ?)";
+    }
+
+    private static void createView(SQLiteDatabase db, int[] partitions) {
+        db.execSQL("DROP VIEW IF EXISTS " + DatabaseHelper.EVENTS_TABLE);
+        db.execSQL("CREATE VIEW " + DatabaseHelper.EVENTS_TABLE + " AS " + buildQuery(partitions));
+    }
+
+    private static String flagColumn(int flag) {
+        return "((d." + DatabaseHelper.FLAGS + " & " + flag + ") != 0)";
+    }
+}
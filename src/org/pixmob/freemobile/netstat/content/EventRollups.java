@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import java.util.TimeZone;
+
+import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.MobileOperator;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Rollups;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Maintain rollup tables, where durations are pre-aggregated by hour and by
+ * day. When an event is inserted, the interval since the previous event is
+ * added to the buckets it overlaps. When an event is inserted before the last
+ * event, the interval it splits is replaced by the two new intervals: rollups
+ * are never rebuilt from the whole history on the write path. Durations are computed the same way the
+ * statistics are computed from raw events: an interval is counted when the
+ * state is the same at both ends, and the interval before a device boot is
+ * ignored.
+ * <p>
+ * Hourly buckets start at UTC hour boundaries, and daily buckets start at
+ * local midnight. Rollups are kept when old events are deleted. This class is
+ * thread-safe.
+ * @author Pixmob
+ */
+class EventRollups {
+    static final String HOURLY_TABLE = "rollups_hourly";
+    static final String DAILY_TABLE = "rollups_daily";
+    private static final long HOUR = 3600 * 1000;
+    private static final long DAY = 24 * HOUR;
+    private static final String[] EVENT_COLUMNS = { Events.TIMESTAMP, Events.SCREEN_ON, Events.WIFI_CONNECTED,
+            Events.MOBILE_CONNECTED, Events.MOBILE_OPERATOR, Events.BATTERY_LEVEL, Events.POWER_ON };
+    private final Event last = new Event();
+    private boolean lastLoaded;
+    private boolean hasLast;
+    private SQLiteDatabase db;
+    private SQLiteStatement hourlyInsert;
+    private SQLiteStatement hourlyUpdate;
+    private SQLiteStatement dailyInsert;
+    private SQLiteStatement dailyUpdate;
+
+    /**
+     * Create rollup tables.
+     */
+    public static void createTables(SQLiteDatabase db) {
+        for (final String table : new String[] { HOURLY_TABLE, DAILY_TABLE }) {
+            db.execSQL("CREATE TABLE " + table + " (" + Rollups.BUCKET_START + " INTEGER PRIMARY KEY, "
+                    + Rollups.ORANGE_TIME + " INTEGER NOT NULL, " + Rollups.FREE_MOBILE_TIME + " INTEGER NOT NULL, "
+                    + Rollups.WIFI_TIME + " INTEGER NOT NULL, " + Rollups.SCREEN_ON_TIME + " INTEGER NOT NULL)");
+        }
+    }
+
+    /**
+     * Get the start of the hourly bucket holding a given time.
+     */
+    public static long getHourStart(long timestamp) {
+        final long r = timestamp % HOUR;
+        return timestamp - (r < 0 ? r + HOUR : r);
+    }
+
+    /**
+     * Get the start of the daily bucket holding a given time, in the default
+     * time zone.
+     */
+    public static long getDayStart(long timestamp) {
+        final TimeZone tz = TimeZone.getDefault();
+        final long local = timestamp + tz.getOffset(timestamp);
+        final long r = local % DAY;
+        final long localMidnight = local - (r < 0 ? r + DAY : r);
+        return localMidnight - tz.getOffset(localMidnight - tz.getOffset(timestamp));
+    }
+
+    /**
+     * Get the start of the next daily bucket. Days may not last 24 hours when
+     * daylight saving time starts or ends.
+     */
+    private static long getNextDayStart(long dayStart) {
+        return getDayStart(dayStart + DAY + 3 * HOUR);
+    }
+
+    /**
+     * Add an event to rollups. The event must have been inserted in the
+     * current transaction.
+     * @return <code>false</code> if the event is older than the last event:
+     *         durations which were already counted were changed
+     */
+    public synchronized boolean add(SQLiteDatabase db, Event e) {
+        if (!lastLoaded) {
+            loadLast(db, e.timestamp);
+        }
+        if (hasLast && e.timestamp < last.timestamp) {
+            // The event splits an interval which was already counted.
+            final Event e0 = new Event();
+            final Event e1 = new Event();
+            final boolean hasPrevious = readEvent(db, e0, Events.TIMESTAMP + "<?", e.timestamp, " DESC");
+            final boolean hasNext = readEvent(db, e1, Events.TIMESTAMP + ">?", e.timestamp, " ASC");
+            if (hasPrevious && hasNext) {
+                addInterval(db, e0, e1, -1, Long.MIN_VALUE, Long.MIN_VALUE);
+            }
+            if (hasPrevious) {
+                addInterval(db, e0, e, 1, Long.MIN_VALUE, Long.MIN_VALUE);
+            }
+            if (hasNext) {
+                addInterval(db, e, e1, 1, Long.MIN_VALUE, Long.MIN_VALUE);
+            }
+            return false;
+        }
+        if (hasLast) {
+            addInterval(db, last, e, 1, Long.MIN_VALUE, Long.MIN_VALUE);
+        }
+        copy(e, last);
+        hasLast = true;
+        return true;
+    }
+
+    /**
+     * Rebuild rollups from events in the database, after events were
+     * updated. Buckets before the first event are kept, as well as existing
+     * buckets holding the first event: they may include durations from
+     * deleted events.
+     */
+    public synchronized void rebuild(SQLiteDatabase db) {
+        final long first = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN(" + Events.TIMESTAMP + "), -1) FROM "
+                + DatabaseHelper.EVENTS_TABLE, null);
+        if (first == -1) {
+            hasLast = false;
+            lastLoaded = true;
+            return;
+        }
+        long hourFrom = getHourStart(first);
+        if (hasBucket(db, HOURLY_TABLE, hourFrom)) {
+            hourFrom += HOUR;
+        }
+        long dayFrom = getDayStart(first);
+        if (hasBucket(db, DAILY_TABLE, dayFrom)) {
+            dayFrom = getNextDayStart(dayFrom);
+        }
+        db.delete(HOURLY_TABLE, Rollups.BUCKET_START + ">=?", new String[] { String.valueOf(hourFrom) });
+        db.delete(DAILY_TABLE, Rollups.BUCKET_START + ">=?", new String[] { String.valueOf(dayFrom) });
+
+        final Cursor c = db.query(DatabaseHelper.EVENTS_TABLE, EVENT_COLUMNS, null, null, null, null,
+            Events.TIMESTAMP + " ASC");
+        try {
+            Event e0 = new Event();
+            Event e = new Event();
+            hasLast = false;
+            while (c.moveToNext()) {
+                e.read(c);
+                if (hasLast) {
+                    addInterval(db, e0, e, 1, hourFrom, dayFrom);
+                }
+                hasLast = true;
+                final Event tmp = e0;
+                e0 = e;
+                e = tmp;
+            }
+            if (hasLast) {
+                copy(e0, last);
+            }
+            lastLoaded = true;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Clear cached state, which is read again from the database when needed.
+     * This method must be called when a transaction fails, or when events are
+     * deleted.
+     */
+    public synchronized void clear() {
+        lastLoaded = false;
+        hasLast = false;
+        closeStatements();
+    }
+
+    private void loadLast(SQLiteDatabase db, long before) {
+        hasLast = readEvent(db, last, Events.TIMESTAMP + "<?", before, " DESC");
+        lastLoaded = true;
+    }
+
+    private static boolean hasBucket(SQLiteDatabase db, String table, long bucket) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + table + " WHERE " + Rollups.BUCKET_START
+                + "=?", new String[] { String.valueOf(bucket) }) != 0;
+    }
+
+    /**
+     * Read the first event matching a selection on timestamps.
+     * @return <code>false</code> if no event was found
+     */
+    private static boolean readEvent(SQLiteDatabase db, Event e, String selection, long timestamp, String order) {
+        final Cursor c = db.query(DatabaseHelper.EVENTS_TABLE, EVENT_COLUMNS, selection,
+            new String[] { String.valueOf(timestamp) }, null, null, Events.TIMESTAMP + order, "1");
+        try {
+            if (c.moveToNext()) {
+                e.read(c);
+                return true;
+            }
+            return false;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Add the interval between two events to the buckets it overlaps.
+     * @param sign <code>-1</code> to remove the interval from rollups
+     * @param hourFrom durations before this time are not added to hourly
+     *            buckets
+     * @param dayFrom durations before this time are not added to daily
+     *            buckets
+     */
+    private void addInterval(SQLiteDatabase db, Event e0, Event e, int sign, long hourFrom, long dayFrom) {
+        if (e.powerOn && !e0.powerOn) {
+            // The device was off.
+            return;
+        }
+
+        final MobileOperator op = MobileOperator.fromString(e.mobileOperator);
+        final MobileOperator op0 = MobileOperator.fromString(e0.mobileOperator);
+        final boolean sameOperator = op != null && op.equals(op0);
+        final boolean orange = sameOperator && MobileOperator.ORANGE.equals(op);
+        final boolean freeMobile = sameOperator && MobileOperator.FREE_MOBILE.equals(op);
+        final boolean wifi = e.wifiConnected && e0.wifiConnected;
+        final boolean screenOn = e.screenOn && e0.screenOn;
+        if (!orange && !freeMobile && !wifi && !screenOn) {
+            return;
+        }
+
+        prepareStatements(db);
+
+        // Split the interval at bucket boundaries.
+        for (long start = Math.max(e0.timestamp, hourFrom); start < e.timestamp;) {
+            final long bucket = getHourStart(start);
+            final long end = Math.min(bucket + HOUR, e.timestamp);
+            addDuration(hourlyInsert, hourlyUpdate, bucket, sign * (end - start), orange, freeMobile, wifi,
+                screenOn);
+            start = end;
+        }
+        for (long start = Math.max(e0.timestamp, dayFrom); start < e.timestamp;) {
+            final long bucket = getDayStart(start);
+            long end = Math.min(getNextDayStart(bucket), e.timestamp);
+            if (end <= start) {
+                // Local midnight is skipped at some daylight saving time
+                // transitions.
+                end = Math.min(start + HOUR, e.timestamp);
+            }
+            addDuration(dailyInsert, dailyUpdate, bucket, sign * (end - start), orange, freeMobile, wifi,
+                screenOn);
+            start = end;
+        }
+    }
+
+    private static void addDuration(SQLiteStatement insert, SQLiteStatement update, long bucket, long duration,
+            boolean orange, boolean freeMobile, boolean wifi, boolean screenOn) {
+        insert.bindLong(1, bucket);
+        insert.execute();
+        update.bindLong(1, orange ? duration : 0);
+        update.bindLong(2, freeMobile ? duration : 0);
+        update.bindLong(3, wifi ? duration : 0);
+        update.bindLong(4, screenOn ? duration : 0);
+        update.bindLong(5, bucket);
+        update.execute();
+    }
+
+    private void prepareStatements(SQLiteDatabase db) {
+        if (db == this.db && hourlyInsert != null) {
+            return;
+        }
+        closeStatements();
+        this.db = db;
+        hourlyInsert = db.compileStatement(buildInsert(HOURLY_TABLE));
+        hourlyUpdate = db.compileStatement(buildUpdate(HOURLY_TABLE));
+        dailyInsert = db.compileStatement(buildInsert(DAILY_TABLE));
+        dailyUpdate = db.compileStatement(buildUpdate(DAILY_TABLE));
+    }
+
+    private void closeStatements() {
+        if (hourlyInsert != null) {
+            hourlyInsert.close();
+            hourlyUpdate.close();
+            dailyInsert.close();
+            dailyUpdate.close();
+            hourlyInsert = null;
+            hourlyUpdate = null;
+            dailyInsert = null;
+            dailyUpdate = null;
+        }
+        db = null;
+    }
+
+    private static String buildInsert(String table) {
+        return "INSERT OR IGNORE INTO " + table + " (" + Rollups.BUCKET_START + ", " + Rollups.ORANGE_TIME + ", "
+                + Rollups.FREE_MOBILE_TIME + ", " + Rollups.WIFI_TIME + ", " + Rollups.SCREEN_ON_TIME
+                + ") VALUES (?, 0, 0, 0, 0)";
+    }
+
+    private static String buildUpdate(String table) {
+        return "UPDATE " + table + " SET " + Rollups.ORANGE_TIME + "=" + Rollups.ORANGE_TIME + "+?, "
+                + Rollups.FREE_MOBILE_TIME + "=" + Rollups.FREE_MOBILE_TIME + "+?, " + Rollups.WIFI_TIME + "="
+                + Rollups.WIFI_TIME + "+?, " + Rollups.SCREEN_ON_TIME + "=" + Rollups.SCREEN_ON_TIME + "+? WHERE "
+                + Rollups.BUCKET_START + "=?";
+    }
+
+    private static void copy(Event src, Event dst) {
+        dst.timestamp = src.timestamp;
+        dst.screenOn = src.screenOn;
+        dst.wifiConnected = src.wifiConnected;
+        dst.mobileConnected = src.mobileConnected;
+        dst.mobileOperator = src.mobileOperator;
+        dst.batteryLevel = src.batteryLevel;
+        dst.powerOn = src.powerOn;
+    }
+}
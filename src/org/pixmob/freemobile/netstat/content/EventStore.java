@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import static org.pixmob.freemobile.netstat.Constants.TAG;
+
+import java.io.IOException;
+
+import org.pixmob.freemobile.netstat.BatteryDownsampler;
+import org.pixmob.freemobile.netstat.DurationIndex;
+import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.IntervalDownsampler;
+import org.pixmob.freemobile.netstat.StateInterval;
+import org.pixmob.freemobile.netstat.content.NetstatContract.BatteryLevels;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+import org.pixmob.freemobile.netstat.content.NetstatContract.StateIntervals;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Read events from the application database, from the application process.
+ * Unlike {@link NetstatContentProvider}, which is kept for other applications,
+ * rows are read from partition tables in the compact storage format: only a
+ * few integer columns are copied to cursor windows, and events are streamed
+ * to a {@link Visitor}. Archived events are included.
+ * @author Pixmob
+ */
+public class EventStore {
+    private final DatabaseHelper dbHelper;
+
+    /**
+     * Callback receiving events, in chronological order.
+     * @author Pixmob
+     */
+    public interface Visitor {
+        /**
+         * Receive an event.
+         * @param flags boolean states packed with the <code>Event.FLAG_*</code>
+         *            values
+         * @param mobileOperator mobile operator identifier, or
+         *            <code>null</code>: the same instance is used for every
+         *            event on the same operator
+         * @return <code>false</code> to stop reading events
+         */
+        boolean visit(long timestamp, int flags, String mobileOperator, int batteryLevel);
+    }
+
+    /**
+     * Durations and the last battery level in a time range.
+     * @author Pixmob
+     */
+    public static class Totals {
+        public long orangeTime;
+        public long freeMobileTime;
+        public long wifiTime;
+        public long screenOnTime;
+        /**
+         * Battery level of the last event, or <code>-1</code> if there is no
+         * event.
+         */
+        public int batteryLevel = -1;
+    }
+
+    public EventStore(final Context context) {
+        this(DatabaseHelper.getInstance(context));
+    }
+
+    EventStore(final DatabaseHelper dbHelper) {
+        this.dbHelper = dbHelper;
+    }
+
+    /**
+     * Count events in a time range.
+     * @param from range start (inclusive)
+     * @param to range end (exclusive)
+     */
+    public int countEvents(long from, long to) {
+        final SQLiteDatabase db = dbHelper.getReadableDatabase();
+        final String[] args = { String.valueOf(from), String.valueOf(to) };
+        int count = 0;
+        for (final int partition : dbHelper.getPartitions().getPartitions(db, from, to)) {
+            count += DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + EventPartitions.getTableName(partition)
+                    + " WHERE " + Events.TIMESTAMP + ">=? AND " + Events.TIMESTAMP + "<?", args);
+        }
+        final EventArchive archive = dbHelper.getArchive();
+        for (final int segment : archive.getSegments(dbHelper.getPartitions().getPartitions(db), from, to)) {
+            try {
+                final EventArchive.Segment s = archive.read(segment);
+                count += s.indexOf(to) - s.indexOf(from);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read archived events", e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stream events in a time range to a visitor, in chronological order.
+     * Each partition is read from its timestamp index, and no object is
+     * allocated for each event.
+     * @param from range start (inclusive)
+     * @param to range end (exclusive)
+     * @return number of visited events
+     */
+    public int visitEvents(long from, long to, Visitor visitor) {
+        final SQLiteDatabase db = dbHelper.getReadableDatabase();
+        int count = 0;
+
+        // Archived months are older than live events.
+        final EventArchive archive = dbHelper.getArchive();
+        for (final int segment : archive.getSegments(dbHelper.getPartitions().getPartitions(db), from, to)) {
+            final EventArchive.Segment s;
+            try {
+                s = archive.read(segment);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read archived events", e);
+                continue;
+            }
+            final int end = s.indexOf(to);
+            for (int i = s.indexOf(from); i < end; ++i) {
+                final int operator = s.operatorIndexes[i];
+                ++count;
+                if (!visitor.visit(s.timestamps[i], s.flags[i], operator == -1 ? null : s.operators[operator],
+                    s.batteryLevels[i])) {
+                    return count;
+                }
+            }
+        }
+
+        final int[] partitions = dbHelper.getPartitions().getPartitions(db, from, to);
+        if (partitions.length == 0) {
+            return count;
+        }
+        final OperatorCodes operators = new OperatorCodes(db);
+        final String[] args = { String.valueOf(from), String.valueOf(to) };
+        for (final int partition : partitions) {
+            final Cursor c = db.rawQuery("SELECT " + Events.TIMESTAMP + ", " + DatabaseHelper.FLAGS + ", "
+                    + DatabaseHelper.OPERATOR_ID + ", " + Events.BATTERY_LEVEL + " FROM "
+                    + EventPartitions.getTableName(partition) + " WHERE " + Events.TIMESTAMP + ">=? AND "
+                    + Events.TIMESTAMP + "<? ORDER BY " + Events.TIMESTAMP + " ASC", args);
+            try {
+                while (c.moveToNext()) {
+                    ++count;
+                    if (!visitor.visit(c.getLong(0), c.getInt(1), c.isNull(2) ? null : operators.get(c.getLong(2)),
+                        c.getInt(3))) {
+                        return count;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Read the last event before a given time, from live partitions.
+     * @return <code>false</code> if there is no event
+     */
+    public boolean readLastEvent(long before, Event e) {
+        final SQLiteDatabase db = dbHelper.getReadableDatabase();
+        final int[] partitions = dbHelper.getPartitions().getPartitions(db, Long.MIN_VALUE, before);
+        final String[] args = { String.valueOf(before) };
+        for (int i = partitions.length - 1; i >= 0; --i) {
+            final Cursor c = db.rawQuery("SELECT " + Events.TIMESTAMP + ", " + DatabaseHelper.FLAGS + ", "
+                    + DatabaseHelper.OPERATOR_ID + ", " + Events.BATTERY_LEVEL + " FROM "
+                    + EventPartitions.getTableName(partitions[i]) + " WHERE " + Events.TIMESTAMP + "<? ORDER BY "
+                    + Events.TIMESTAMP + " DESC LIMIT 1", args);
+            try {
+                if (c.moveToNext()) {
+                    final int flags = c.getInt(1);
+                    e.timestamp = c.getLong(0);
+                    e.screenOn = (flags & Event.FLAG_SCREEN_ON) != 0;
+                    e.wifiConnected = (flags & Event.FLAG_WIFI_CONNECTED) != 0;
+                    e.mobileConnected = (flags & Event.FLAG_MOBILE_CONNECTED) != 0;
+                    e.powerOn = (flags & Event.FLAG_POWER_ON) != 0;
+                    e.mobileOperator = c.isNull(2) ? null : new OperatorCodes(db).get(c.getLong(2));
+                    e.batteryLevel = c.getInt(3);
+                    return true;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get a counter incremented each time existing events are updated or
+     * deleted, or when an event is inserted before the last event. State
+     * derived from events must be computed again when this value changes.
+     */
+    public int getChangeCount() {
+        return dbHelper.getChangeNotifier().getChangeCount();
+    }
+
+    /**
+     * Get a counter incremented each time events are inserted, updated or
+     * deleted. Results computed from events are up to date while this value
+     * does not change.
+     */
+    public int getDataVersion() {
+        return dbHelper.getChangeNotifier().getDataVersion();
+    }
+
+    /**
+     * Get the index of cumulative durations shared in the application
+     * process. The index must be updated with this store before it is
+     * queried.
+     */
+    public DurationIndex getDurationIndex() {
+        return dbHelper.getDurationIndex();
+    }
+
+    /**
+     * Compute durations and the last battery level in a time range. The
+     * database returns a single row.
+     * @param from range start (inclusive)
+     * @param to range end (exclusive)
+     */
+    public void readTotals(long from, long to, Totals totals) {
+        final SQLiteDatabase db = dbHelper.getReadableDatabase();
+        final Cursor c = EventAggregates.query(db, dbHelper.getPartitions(), from, to);
+        try {
+            if (c.moveToNext()) {
+                totals.orangeTime = c.getLong(0);
+                totals.freeMobileTime = c.getLong(1);
+                totals.wifiTime = c.getLong(2);
+                totals.screenOnTime = c.getLong(3);
+                totals.batteryLevel = c.isNull(4) ? -1 : c.getInt(4);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Stream state intervals overlapping a time range, in chronological order,
+     * to a downsampler. Rows are not kept in memory.
+     * @param from range start (inclusive)
+     * @param to range end (exclusive)
+     */
+    public void readIntervals(long from, long to, IntervalDownsampler downsampler) {
+        final SQLiteDatabase db = dbHelper.getReadableDatabase();
+        final Cursor c = db.query(EventIntervals.INTERVALS_VIEW, new String[] { StateIntervals.START,
+                StateIntervals.END, StateIntervals.SCREEN_ON, StateIntervals.WIFI_CONNECTED,
+                StateIntervals.MOBILE_CONNECTED, StateIntervals.MOBILE_OPERATOR, StateIntervals.POWER_ON },
+            EventIntervals.buildRangeSelection(from, to), null, null, null, StateIntervals.START + " ASC");
+        try {
+            final StateInterval si = new StateInterval();
+            while (c.moveToNext()) {
+                si.read(c);
+                downsampler.add(si);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Stream battery levels in a time range, at a given resolution, to a
+     * downsampler. Rows are not kept in memory.
+     * @param from range start (inclusive)
+     * @param to range end (exclusive)
+     * @param resolution one of the <code>BatteryLevels.RESOLUTION_*</code>
+     *            values
+     */
+    public void readBatteryLevels(long from, long to, long resolution, BatteryDownsampler downsampler) {
+        final SQLiteDatabase db = dbHelper.getReadableDatabase();
+        final String table = EventBatteryLevels.buildSource(db, dbHelper.getPartitions(), from, to, resolution);
+        final Cursor c = db.rawQuery("SELECT " + BatteryLevels.BUCKET_START + ", " + BatteryLevels.MIN_LEVEL + ", "
+                + BatteryLevels.MAX_LEVEL + " FROM " + table + " WHERE " + BatteryLevels.BUCKET_START + ">=? AND "
+                + BatteryLevels.BUCKET_START + "<? ORDER BY " + BatteryLevels.BUCKET_START + " ASC", new String[] {
+                String.valueOf(from), String.valueOf(to) });
+        try {
+            while (c.moveToNext()) {
+                downsampler.add(c.getLong(0), c.getInt(1), c.getInt(2));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Mobile operator codes, read from the dictionary table. There are only
+     * a few operators: codes are found with a linear search.
+     */
+    private static class OperatorCodes {
+        private final long[] ids;
+        private final String[] codes;
+
+        public OperatorCodes(final SQLiteDatabase db) {
+            final Cursor c = db.query(DatabaseHelper.OPERATORS_TABLE, new String[] { Events._ID,
+                    DatabaseHelper.OPERATOR_CODE }, null, null, null, null, null);
+            try {
+                ids = new long[c.getCount()];
+                codes = new String[ids.length];
+                for (int i = 0; c.moveToNext(); ++i) {
+                    ids[i] = c.getLong(0);
+                    codes[i] = c.getString(1);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        public String get(long id) {
+            for (int i = 0; i < ids.length; ++i) {
+                if (ids[i] == id) {
+                    return codes[i];
+                }
+            }
+            return null;
+        }
+    }
+}
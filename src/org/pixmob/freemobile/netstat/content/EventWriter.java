@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import java.util.Arrays;
+
+import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Write events to the application database, from the application process.
+ * Events are inserted with a pre-compiled statement: no object is allocated
+ * for each event, unless a new partition is created. An instance must only be
+ * used by a single thread.
+ * @author Pixmob
+ */
+public class EventWriter {
+    private final DatabaseHelper dbHelper;
+    private final EventPartitions partitions;
+    private final EventRollups rollups;
+    private final EventIntervals intervals;
+    private final EventBatteryLevels batteryLevels;
+    private final ChangeNotifier changeNotifier;
+    private SQLiteDatabase db;
+    /**
+     * Statement inserting events into the current partition.
+     */
+    private SQLiteStatement insertStatement;
+    private long partitionStart;
+    private long partitionEnd;
+
+    public EventWriter(final Context context) {
+        this(DatabaseHelper.getInstance(context));
+    }
+
+    EventWriter(final DatabaseHelper dbHelper) {
+        this.dbHelper = dbHelper;
+        partitions = dbHelper.getPartitions();
+        rollups = dbHelper.getRollups();
+        intervals = dbHelper.getIntervals();
+        batteryLevels = dbHelper.getBatteryLevels();
+        changeNotifier = dbHelper.getChangeNotifier();
+    }
+
+    /**
+     * Insert events in a single transaction. Content observers are notified
+     * when every event is inserted.
+     */
+    public void write(Event[] events, int count) {
+        if (count == 0) {
+            return;
+        }
+
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        if (db != this.db) {
+            close();
+            this.db = db;
+        }
+
+        long firstId = -1;
+        long id = -1;
+        boolean rollupsChanged = false;
+        long rebuildIntervalsFrom = Long.MAX_VALUE;
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; ++i) {
+                final Event e = events[i];
+                if (insertStatement == null || e.timestamp < partitionStart || e.timestamp >= partitionEnd) {
+                    selectPartition(db, EventPartitions.getPartition(e.timestamp));
+                }
+                id = partitions.nextEventId(db);
+                if (firstId == -1) {
+                    firstId = id;
+                }
+                final long operatorId = dbHelper.getOperatorId(db, e.mobileOperator);
+                bind(insertStatement, e, id, operatorId);
+                insertStatement.executeInsert();
+                if (!rollups.add(db, e)) {
+                    rollupsChanged = true;
+                }
+                if (rebuildIntervalsFrom != Long.MAX_VALUE) {
+                    rebuildIntervalsFrom = Math.min(rebuildIntervalsFrom, e.timestamp);
+                } else if (!intervals.add(db, e, operatorId)) {
+                    rebuildIntervalsFrom = e.timestamp;
+                }
+                batteryLevels.add(db, e);
+            }
+            // Some events were older than the last event.
+            if (rebuildIntervalsFrom != Long.MAX_VALUE) {
+                intervals.rebuild(db, rebuildIntervalsFrom);
+            }
+            partitions.saveEventId(db);
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            db.endTransaction();
+            if (!success) {
+                // New mobile operators, partitions, rollups and intervals
+                // were not inserted.
+                dbHelper.clearCaches();
+                close();
+            }
+        }
+
+        changeNotifier.notifyInserted(firstId, id);
+        if (rollupsChanged || rebuildIntervalsFrom != Long.MAX_VALUE) {
+            // Durations computed from existing events were changed.
+            changeNotifier.notifyChanged();
+        }
+    }
+
+    /**
+     * Get the timestamp of the last event in the database.
+     * @return <code>0</code> if the database is empty
+     */
+    public long getLastTimestamp() {
+        final SQLiteDatabase db = dbHelper.getReadableDatabase();
+        final int[] all = partitions.getPartitions(db);
+        for (int i = all.length - 1; i >= 0; --i) {
+            final long timestamp = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + Events.TIMESTAMP
+                    + "), 0) FROM " + EventPartitions.getTableName(all[i]), null);
+            if (timestamp != 0) {
+                return timestamp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Check if an event with a given timestamp is in the database. The
+     * timestamp index of the event partition is read.
+     */
+    public boolean hasEvent(long timestamp) {
+        final SQLiteDatabase db = dbHelper.getReadableDatabase();
+        final int partition = EventPartitions.getPartition(timestamp);
+        if (Arrays.binarySearch(partitions.getPartitions(db), partition) < 0) {
+            return false;
+        }
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + EventPartitions.getTableName(partition)
+                + " WHERE " + Events.TIMESTAMP + "=?", new String[] { String.valueOf(timestamp) }) != 0;
+    }
+
+    /**
+     * Release resources used by this instance.
+     */
+    public void close() {
+        if (insertStatement != null) {
+            insertStatement.close();
+            insertStatement = null;
+        }
+        db = null;
+    }
+
+    /**
+     * Prepare the insert statement for a partition, which is created if
+     * needed.
+     */
+    private void selectPartition(SQLiteDatabase db, int partition) {
+        partitions.ensurePartition(db, partition);
+        if (insertStatement != null) {
+            insertStatement.close();
+        }
+        insertStatement = db.compileStatement(EventPartitions.buildInsert(partition));
+        partitionStart = EventPartitions.getPartitionStart(partition);
+        partitionEnd = EventPartitions.getPartitionEnd(partition);
+    }
+
+    private static void bind(SQLiteStatement s, Event e, long id, long operatorId) {
+        s.bindLong(1, id);
+        s.bindLong(2, e.timestamp);
+        s.bindLong(3, e.flags());
+        if (operatorId == -1) {
+            s.bindNull(4);
+        } else {
+            s.bindLong(4, operatorId);
+        }
+        s.bindLong(5, e.batteryLevel);
+    }
+}
@@ -17,49 +17,101 @@ package org.pixmob.freemobile.netstat.content;
 
 import static org.pixmob.freemobile.netstat.Constants.TAG;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Map;
 
+import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Aggregates;
+import org.pixmob.freemobile.netstat.content.NetstatContract.BatteryLevels;
 import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Rollups;
+import org.pixmob.freemobile.netstat.content.NetstatContract.StateIntervals;
 
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MergeCursor;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
 
 /**
- * The content provider for the application database.
+ * The content provider for the application database. Events are read from a
+ * view exposing the columns defined in {@link Events}: when events are written,
+ * values are translated to the compact storage format. When a time range is
+ * set with {@link Events#PARAM_FROM} and {@link Events#PARAM_TO}, only
+ * partitions overlapping this range are read. Rollups, state intervals and
+ * downsampled battery levels are updated when events are inserted, and exposed
+ * as read-only tables. Aggregates on a time range are computed by the
+ * database, and returned as a single row. Archived events are merged with live
+ * events when a query reaches past the oldest partition.
  * @author Pixmob
  */
 public class NetstatContentProvider extends ContentProvider {
-    private static final String EVENTS_TABLE = "events";
+    private static final String EVENTS_TABLE = DatabaseHelper.EVENTS_TABLE;
     
     private static final int EVENTS = 1;
     private static final int EVENT_ID = 2;
+    private static final int EVENTS_SINCE = 3;
+    private static final int LATEST_EVENT_ID = 4;
+    private static final int HOURLY_ROLLUPS = 5;
+    private static final int DAILY_ROLLUPS = 6;
+    private static final int STATE_INTERVALS = 7;
+    private static final int BATTERY_LEVELS = 8;
+    private static final int AGGREGATE = 9;
     
     private static final UriMatcher URI_MATCHER;
     static {
         URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
         URI_MATCHER.addURI(NetstatContract.AUTHORITY, "events", EVENTS);
         URI_MATCHER.addURI(NetstatContract.AUTHORITY, "event/*", EVENT_ID);
+        URI_MATCHER.addURI(NetstatContract.AUTHORITY, "events/since/#", EVENTS_SINCE);
+        URI_MATCHER.addURI(NetstatContract.AUTHORITY, "events/latest", LATEST_EVENT_ID);
+        URI_MATCHER.addURI(NetstatContract.AUTHORITY, "events/rollups/hourly", HOURLY_ROLLUPS);
+        URI_MATCHER.addURI(NetstatContract.AUTHORITY, "events/rollups/daily", DAILY_ROLLUPS);
+        URI_MATCHER.addURI(NetstatContract.AUTHORITY, "events/intervals", STATE_INTERVALS);
+        URI_MATCHER.addURI(NetstatContract.AUTHORITY, "events/battery", BATTERY_LEVELS);
+        URI_MATCHER.addURI(NetstatContract.AUTHORITY, "events/aggregate", AGGREGATE);
     }
     
-    private SQLiteOpenHelper dbHelper;
+    private DatabaseHelper dbHelper;
+    private ChangeNotifier changeNotifier;
+    /**
+     * Content changes which are notified when the current batch is done.
+     * When this value is <code>null</code>, no batch is running in the
+     * current thread.
+     */
+    private final ThreadLocal<ChangeNotifier.Changes> pendingChanges = new ThreadLocal<ChangeNotifier.Changes>();
+    
+    public NetstatContentProvider() {
+    }
+    
+    /**
+     * Create a provider for a separate database. This constructor is used by
+     * tests and benchmarks.
+     */
+    NetstatContentProvider(final DatabaseHelper dbHelper) {
+        this.dbHelper = dbHelper;
+    }
     
     @Override
     public boolean onCreate() {
         try {
-            dbHelper = new DatabaseHelper(getContext());
+            if (dbHelper == null) {
+                dbHelper = DatabaseHelper.getInstance(getContext());
+            }
+            changeNotifier = dbHelper.getChangeNotifier();
         } catch (Exception e) {
             Log.e(TAG, "Cannot create content provider", e);
             return false;
@@ -71,9 +123,20 @@ public class NetstatContentProvider extends ContentProvider {
     public String getType(Uri uri) {
         switch (URI_MATCHER.match(uri)) {
             case EVENTS:
+            case EVENTS_SINCE:
                 return Events.CONTENT_TYPE;
             case EVENT_ID:
+            case LATEST_EVENT_ID:
                 return Events.CONTENT_ITEM_TYPE;
+            case HOURLY_ROLLUPS:
+            case DAILY_ROLLUPS:
+                return Rollups.CONTENT_TYPE;
+            case STATE_INTERVALS:
+                return StateIntervals.CONTENT_TYPE;
+            case BATTERY_LEVELS:
+                return BatteryLevels.CONTENT_TYPE;
+            case AGGREGATE:
+                return Aggregates.CONTENT_ITEM_TYPE;
             default:
                 throw new IllegalArgumentException("Unsupported Uri: " + uri);
         }
@@ -88,7 +151,11 @@ public class NetstatContentProvider extends ContentProvider {
         }
         
         // Execute batch operations in a single transaction for performance.
+        // Content changes are notified once, when the batch is done.
+        final ChangeNotifier.Changes changes = new ChangeNotifier.Changes();
         final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        pendingChanges.set(changes);
+        boolean success = false;
         db.beginTransaction();
         try {
             final int numOperations = operations.size();
@@ -97,46 +164,238 @@ public class NetstatContentProvider extends ContentProvider {
                 results[i] = operations.get(i).apply(this, results, i);
             }
             db.setTransactionSuccessful();
+            success = true;
             return results;
         } finally {
             db.endTransaction();
+            if (!success) {
+                // New mobile operators and partitions were not inserted.
+                dbHelper.clearCaches();
+            }
+            pendingChanges.set(null);
+            if (success) {
+                changeNotifier.notifyChanges(changes);
+            }
+        }
+    }
+    
+    /**
+     * Notify content observers that new events were inserted. When a batch is
+     * running, the notification is delayed until the batch is done.
+     */
+    private void notifyInserted(long firstId, long lastId) {
+        final ChangeNotifier.Changes changes = pendingChanges.get();
+        if (changes != null) {
+            changes.addInserted(firstId);
+            changes.addInserted(lastId);
+        } else {
+            changeNotifier.notifyInserted(firstId, lastId);
+        }
+    }
+    
+    /**
+     * Notify content observers that events were updated or deleted. When a
+     * batch is running, the notification is delayed until the batch is done.
+     */
+    private void notifyChanged() {
+        final ChangeNotifier.Changes changes = pendingChanges.get();
+        if (changes != null) {
+            changes.addChanged();
+        } else {
+            changeNotifier.notifyChanged();
         }
     }
     
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        final String table;
         final Uri contentUri;
         switch (URI_MATCHER.match(uri)) {
             case EVENTS:
-                table = EVENTS_TABLE;
                 contentUri = Events.CONTENT_URI;
                 break;
             default:
                 throw new IllegalArgumentException("Unsupported Uri: " + uri);
         }
         
+        final long timestamp = checkEventValues(values);
+        
         final SQLiteDatabase db = dbHelper.getWritableDatabase();
-        final long rowId = db.insertOrThrow(table, "notNull", values);
-        if (rowId == -1) {
-            throw new SQLException("Failed to insert new row");
+        final EventPartitions partitions = dbHelper.getPartitions();
+        final int partition = EventPartitions.getPartition(timestamp);
+        partitions.ensurePartition(db, partition);
+        
+        final ContentValues data = new ContentValues(values.size() + 1);
+        final int flags = toEventData(db, values, data);
+        data.put(DatabaseHelper.FLAGS, flags);
+        final Long id = data.getAsLong(Events._ID);
+        if (id == null) {
+            data.put(Events._ID, partitions.nextEventId(db));
+        } else {
+            partitions.reserveEventId(db, id);
+        }
+        
+        final long rowId;
+        final Event e = Event.obtain();
+        boolean rebuilt = false;
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            rowId = db.insertOrThrow(EventPartitions.getTableName(partition),
+                null, data);
+            if (rowId == -1) {
+                throw new SQLException("Failed to insert new row");
+            }
+            
+            toEvent(values, e);
+            if (!dbHelper.getRollups().add(db, e)) {
+                rebuilt = true;
+            }
+            final EventIntervals intervals = dbHelper.getIntervals();
+            if (!intervals.add(db, e, dbHelper.getOperatorId(db, e.mobileOperator))) {
+                intervals.rebuild(db, e.timestamp);
+                rebuilt = true;
+            }
+            dbHelper.getBatteryLevels().add(db, e);
+            partitions.saveEventId(db);
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            e.recycle();
+            db.endTransaction();
+            if (!success) {
+                dbHelper.clearCaches();
+            }
         }
         
         final Uri rowUri = Uri.withAppendedPath(contentUri,
             String.valueOf(rowId));
-        getContext().getContentResolver().notifyChange(uri, null, false);
+        notifyInserted(rowId, rowId);
+        if (rebuilt) {
+            // Durations computed from existing events were changed.
+            notifyChanged();
+        }
         
         return rowUri;
     }
     
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        switch (URI_MATCHER.match(uri)) {
+            case EVENTS:
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported Uri: " + uri);
+        }
+        if (values.length == 0) {
+            return 0;
+        }
+        
+        // Insert events in a single transaction, with a pre-compiled
+        // statement for each partition. Content observers are notified once.
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final EventPartitions partitions = dbHelper.getPartitions();
+        final EventRollups rollups = dbHelper.getRollups();
+        final EventIntervals intervals = dbHelper.getIntervals();
+        final EventBatteryLevels batteryLevels = dbHelper.getBatteryLevels();
+        final Event e = Event.obtain();
+        boolean rollupsChanged = false;
+        long rebuildIntervalsFrom = Long.MAX_VALUE;
+        SQLiteStatement insertStatement = null;
+        long firstId = -1;
+        long lastId = -1;
+        long partitionStart = 0;
+        long partitionEnd = 0;
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            for (final ContentValues cv : values) {
+                // Values are checked like values inserted one at a time.
+                final long timestamp = checkEventValues(cv);
+                if (insertStatement == null || timestamp < partitionStart
+                        || timestamp >= partitionEnd) {
+                    final int partition = EventPartitions.getPartition(timestamp);
+                    partitions.ensurePartition(db, partition);
+                    if (insertStatement != null) {
+                        insertStatement.close();
+                    }
+                    insertStatement = db.compileStatement(EventPartitions
+                            .buildInsert(partition));
+                    partitionStart = EventPartitions.getPartitionStart(partition);
+                    partitionEnd = EventPartitions.getPartitionEnd(partition);
+                }
+                
+                final Long requestedId = toLong(cv.get(Events._ID));
+                final long id;
+                if (requestedId == null) {
+                    id = partitions.nextEventId(db);
+                } else {
+                    id = requestedId;
+                    partitions.reserveEventId(db, id);
+                }
+                insertStatement.bindLong(1, id);
+                if (firstId == -1 || id < firstId) {
+                    firstId = id;
+                }
+                lastId = Math.max(lastId, id);
+                insertStatement.bindLong(2, timestamp);
+                toEvent(cv, e);
+                insertStatement.bindLong(3, e.flags());
+                final long operatorId = dbHelper.getOperatorId(db,
+                    e.mobileOperator);
+                if (operatorId == -1) {
+                    insertStatement.bindNull(4);
+                } else {
+                    insertStatement.bindLong(4, operatorId);
+                }
+                insertStatement.bindLong(5, e.batteryLevel);
+                insertStatement.executeInsert();
+                if (!rollups.add(db, e)) {
+                    rollupsChanged = true;
+                }
+                if (rebuildIntervalsFrom != Long.MAX_VALUE) {
+                    rebuildIntervalsFrom = Math.min(rebuildIntervalsFrom, timestamp);
+                } else if (!intervals.add(db, e, operatorId)) {
+                    rebuildIntervalsFrom = timestamp;
+                }
+                batteryLevels.add(db, e);
+            }
+            // Some events were older than the last event.
+            if (rebuildIntervalsFrom != Long.MAX_VALUE) {
+                intervals.rebuild(db, rebuildIntervalsFrom);
+            }
+            partitions.saveEventId(db);
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            e.recycle();
+            if (insertStatement != null) {
+                insertStatement.close();
+            }
+            db.endTransaction();
+            if (!success) {
+                // New mobile operators and partitions were not inserted.
+                dbHelper.clearCaches();
+            }
+        }
+        
+        notifyInserted(firstId, lastId);
+        if (rollupsChanged || rebuildIntervalsFrom != Long.MAX_VALUE) {
+            // Durations computed from existing events were changed.
+            notifyChanged();
+        }
+        return values.length;
+    }
+    
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = dbHelper.getWritableDatabase();
-        final int count;
+        final EventPartitions partitions = dbHelper.getPartitions();
+        final int[] targetPartitions = getPartitions(db, uri);
+        final String eventSelection;
         
         switch (URI_MATCHER.match(uri)) {
             case EVENTS:
-                count = db.delete(EVENTS_TABLE, selection, selectionArgs);
+                eventSelection = selection;
                 break;
             case EVENT_ID:
                 final String phoneId = uri.getPathSegments().get(1);
@@ -144,14 +403,52 @@ public class NetstatContentProvider extends ContentProvider {
                 if (!TextUtils.isEmpty(selection)) {
                     phoneFullSelection += " AND (" + selection + ")";
                 }
-                count = db.delete(EVENTS_TABLE, phoneFullSelection,
-                    selectionArgs);
+                eventSelection = phoneFullSelection;
                 break;
             default:
                 throw new IllegalArgumentException("Unsupported Uri: " + uri);
         }
         
-        getContext().getContentResolver().notifyChange(uri, null, false);
+        final long from = getRangeStart(uri);
+        final long to = getRangeEnd(uri);
+        final String limitParam = uri.getQueryParameter(Events.PARAM_LIMIT);
+        int limit = limitParam == null ? Integer.MAX_VALUE : Integer.parseInt(limitParam);
+        int count = 0;
+        for (final int partition : targetPartitions) {
+            final String table = EventPartitions.getTableName(partition);
+            if (TextUtils.isEmpty(eventSelection)
+                    && from <= EventPartitions.getPartitionStart(partition)
+                    && to >= EventPartitions.getPartitionEnd(partition)) {
+                // Every event in this partition is deleted: the partition is
+                // dropped, without reading nor rewriting any row. The limit
+                // does not apply, since this is cheap.
+                count += DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                        + table, null);
+                partitions.dropPartition(db, partition);
+            } else if (limit > 0) {
+                String partitionSelection = toEventDataSelection(partition,
+                    eventSelection, uri);
+                if (limit != Integer.MAX_VALUE) {
+                    // Delete the oldest events first.
+                    partitionSelection = Events._ID + " IN (SELECT " + Events._ID
+                            + " FROM " + table
+                            + (partitionSelection == null ? "" : " WHERE " + partitionSelection)
+                            + " ORDER BY " + Events.TIMESTAMP + " LIMIT " + limit + ")";
+                }
+                final int deleted = db.delete(table, partitionSelection, selectionArgs);
+                count += deleted;
+                if (limit != Integer.MAX_VALUE) {
+                    limit -= deleted;
+                }
+            }
+        }
+        
+        // Rollups and intervals are kept for deleted events: the last event
+        // is read again when the next event is inserted.
+        dbHelper.getRollups().clear();
+        dbHelper.getIntervals().clear();
+        
+        notifyChanged();
         return count;
     }
     
@@ -160,37 +457,220 @@ public class NetstatContentProvider extends ContentProvider {
             String[] selectionArgs, String sortOrder) {
         String realSortOrder = sortOrder;
         
+        final SQLiteDatabase db = dbHelper.getReadableDatabase();
+        final int match = URI_MATCHER.match(uri);
+        if (match == LATEST_EVENT_ID) {
+            final Cursor c = db.rawQuery(buildLatestIdQuery(db), null);
+            c.setNotificationUri(getContext().getContentResolver(),
+                Events.CONTENT_URI);
+            return c;
+        }
+        if (match == AGGREGATE) {
+            // Durations and the last battery level are computed by the
+            // database: a single row is sent to the client.
+            final Cursor c = EventAggregates.query(db, dbHelper.getPartitions(),
+                getRangeStart(uri), getRangeEnd(uri));
+            c.setNotificationUri(getContext().getContentResolver(),
+                Events.CONTENT_URI);
+            return c;
+        }
+        
         final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        switch (URI_MATCHER.match(uri)) {
+        if (match == HOURLY_ROLLUPS || match == DAILY_ROLLUPS) {
+            qb.setTables(match == HOURLY_ROLLUPS ? EventRollups.HOURLY_TABLE
+                    : EventRollups.DAILY_TABLE);
+            final String rangeSelection = getRangeSelection(uri,
+                Rollups.BUCKET_START);
+            if (rangeSelection != null) {
+                qb.appendWhere(rangeSelection);
+            }
+            if (TextUtils.isEmpty(realSortOrder)) {
+                realSortOrder = Rollups.BUCKET_START + " ASC";
+            }
+            final Cursor c = qb.query(db, projection, selection, selectionArgs,
+                null, null, realSortOrder);
+            c.setNotificationUri(getContext().getContentResolver(), uri);
+            return c;
+        }
+        if (match == BATTERY_LEVELS) {
+            final String resolution = uri.getQueryParameter(BatteryLevels.PARAM_RESOLUTION);
+            final long resolutionValue = resolution == null ? BatteryLevels.RESOLUTION_RAW
+                    : Long.parseLong(resolution);
+            qb.setTables(EventBatteryLevels.buildSource(db, dbHelper.getPartitions(),
+                getRangeStart(uri), getRangeEnd(uri), resolutionValue));
+            final String rangeSelection = getRangeSelection(uri,
+                BatteryLevels.BUCKET_START);
+            if (rangeSelection != null) {
+                qb.appendWhere(rangeSelection);
+            }
+            if (TextUtils.isEmpty(realSortOrder)) {
+                realSortOrder = BatteryLevels.BUCKET_START + " ASC";
+            }
+            final Cursor c = qb.query(db, projection, selection, selectionArgs,
+                null, null, realSortOrder);
+            c.setNotificationUri(getContext().getContentResolver(), uri);
+            return c;
+        }
+        if (match == STATE_INTERVALS) {
+            qb.setTables(EventIntervals.INTERVALS_VIEW);
+            final long from = getRangeStart(uri);
+            final long to = getRangeEnd(uri);
+            if (from != Long.MIN_VALUE || to != Long.MAX_VALUE) {
+                qb.appendWhere(EventIntervals.buildRangeSelection(from, to));
+            }
+            if (TextUtils.isEmpty(realSortOrder)) {
+                realSortOrder = StateIntervals.START + " ASC";
+            }
+            final Cursor c = qb.query(db, projection, selection, selectionArgs,
+                null, null, realSortOrder);
+            c.setNotificationUri(getContext().getContentResolver(), uri);
+            return c;
+        }
+        
+        final String rangeSelection = getRangeSelection(uri);
+        if (match == EVENTS_SINCE) {
+            // Each partition is read from the primary key index, starting
+            // after the given identifier.
+            final long sinceId = Long.parseLong(uri.getPathSegments().get(2));
+            qb.setTables("(" + EventPartitions.buildQuery(getPartitions(db, uri),
+                "d." + Events._ID + ">" + sinceId) + ")");
+            if (rangeSelection != null) {
+                qb.appendWhere(rangeSelection);
+            }
+        } else if (rangeSelection == null) {
+            qb.setTables(EVENTS_TABLE);
+        } else {
+            // Only read partitions overlapping the time range.
+            qb.setTables("(" + EventPartitions.buildQuery(getPartitions(db, uri)) + ")");
+            qb.appendWhere(rangeSelection);
+        }
+        switch (match) {
             case EVENTS:
-                qb.setTables(EVENTS_TABLE);
                 if (TextUtils.isEmpty(realSortOrder)) {
                     realSortOrder = Events.TIMESTAMP + " DESC";
                 }
                 break;
+            case EVENTS_SINCE:
+                if (TextUtils.isEmpty(realSortOrder)) {
+                    realSortOrder = Events._ID + " ASC";
+                }
+                break;
             case EVENT_ID:
-                qb.setTables(EVENTS_TABLE);
+                if (rangeSelection != null) {
+                    qb.appendWhere(" AND ");
+                }
                 qb.appendWhere(Events._ID + "=" + uri.getPathSegments().get(1));
                 break;
+            default:
+                throw new IllegalArgumentException("Unsupported Uri: " + uri);
         }
         
-        final SQLiteDatabase db = dbHelper.getReadableDatabase();
         final Cursor c = qb.query(db, projection, selection, selectionArgs,
             null, null, realSortOrder);
-        c.setNotificationUri(getContext().getContentResolver(), uri);
+        c.setNotificationUri(getContext().getContentResolver(),
+            match == EVENTS_SINCE ? Events.CONTENT_URI : uri);
         
+        if (match == EVENTS) {
+            return mergeArchivedEvents(db, uri, projection, selection, realSortOrder, c);
+        }
         return c;
     }
     
+    /**
+     * Merge archived events with live events, when archive segments overlap
+     * the time range: archived months are older than live events. Archived
+     * events are read from segments, which do not support selections, sort
+     * orders other than by timestamp, nor expressions in the projection: such
+     * queries only return live events.
+     */
+    private Cursor mergeArchivedEvents(SQLiteDatabase db, Uri uri,
+            String[] projection, String selection, String sortOrder, Cursor c) {
+        final int[] livePartitions = dbHelper.getPartitions().getPartitions(db);
+        final long liveStart = livePartitions.length == 0 ? Long.MAX_VALUE
+                : EventPartitions.getPartitionStart(livePartitions[0]);
+        final long from = getRangeStart(uri);
+        final long to = Math.min(getRangeEnd(uri), liveStart);
+        if (from >= to) {
+            return c;
+        }
+        final EventArchive archive = dbHelper.getArchive();
+        final int[] segments = archive.getSegments(livePartitions, from, to);
+        if (segments.length == 0) {
+            return c;
+        }
+        
+        final String order = sortOrder.trim();
+        final boolean descending;
+        if (order.equalsIgnoreCase(Events.TIMESTAMP + " DESC")) {
+            descending = true;
+        } else if (order.equalsIgnoreCase(Events.TIMESTAMP)
+                || order.equalsIgnoreCase(Events.TIMESTAMP + " ASC")) {
+            descending = false;
+        } else {
+            Log.w(TAG, "Archived events are not included: unsupported sort order " + sortOrder);
+            return c;
+        }
+        if (!TextUtils.isEmpty(selection)) {
+            Log.w(TAG, "Archived events are not included: unsupported selection " + selection);
+            return c;
+        }
+        if (!ArchiveCursor.isSupported(projection)) {
+            Log.w(TAG, "Archived events are not included: unsupported projection");
+            return c;
+        }
+        
+        final EventArchive.Segment[] overlapping = new EventArchive.Segment[segments.length];
+        try {
+            for (int i = 0; i < segments.length; ++i) {
+                overlapping[i] = archive.read(segments[i]);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read archived events", e);
+            return c;
+        }
+        
+        final Cursor archived = new ArchiveCursor(projection, overlapping,
+                from, to, descending);
+        if (archived.getCount() == 0) {
+            archived.close();
+            return c;
+        }
+        return new MergeCursor(descending ? new Cursor[] { c, archived }
+                : new Cursor[] { archived, c });
+    }
+    
+    /**
+     * Get a query returning the identifier of the last inserted event, or
+     * <code>0</code> if there is no event. The largest identifier of each
+     * partition is read from the primary key index.
+     */
+    private String buildLatestIdQuery(SQLiteDatabase db) {
+        final int[] partitions = dbHelper.getPartitions().getPartitions(db);
+        if (partitions.length == 0) {
+            return "SELECT 0 AS " + Events._ID;
+        }
+        final StringBuilder buf = new StringBuilder(64 * partitions.length);
+        buf.append("SELECT IFNULL(MAX(").append(Events._ID).append("), 0) AS ")
+                .append(Events._ID).append(" FROM (");
+        for (int i = 0; i < partitions.length; ++i) {
+            if (i != 0) {
+                buf.append(" UNION ALL ");
+            }
+            buf.append("SELECT MAX(").append(Events._ID).append(") AS ")
+                    .append(Events._ID).append(" FROM ")
+                    .append(EventPartitions.getTableName(partitions[i]));
+        }
+        return buf.append(")").toString();
+    }
+    
     @Override
     public int update(Uri uri, ContentValues values, String selection,
             String[] selectionArgs) {
         final SQLiteDatabase db = dbHelper.getWritableDatabase();
-        final int count;
+        final String eventSelection;
         switch (URI_MATCHER.match(uri)) {
             case EVENTS:
-                count = db.update(EVENTS_TABLE, values, selection,
-                    selectionArgs);
+                eventSelection = selection;
                 break;
             case EVENT_ID:
                 final String phoneId = uri.getPathSegments().get(1);
@@ -198,52 +678,273 @@ public class NetstatContentProvider extends ContentProvider {
                 if (!TextUtils.isEmpty(selection)) {
                     phoneFullSelection += " AND (" + selection + ")";
                 }
-                count = db.update(EVENTS_TABLE, values, phoneFullSelection,
-                    selectionArgs);
+                eventSelection = phoneFullSelection;
                 break;
             default:
                 throw new IllegalArgumentException("Unsupported Uri: " + uri);
         }
+        if (values.containsKey(Events.TIMESTAMP)) {
+            // The event would have to be moved to another partition.
+            throw new IllegalArgumentException("Event timestamp cannot be updated");
+        }
         
-        getContext().getContentResolver().notifyChange(uri, null, false);
+        int count = 0;
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            for (final int partition : getPartitions(db, uri)) {
+                count += updateEventData(db, partition, values, eventSelection,
+                    selectionArgs, uri);
+            }
+            if (count != 0) {
+                dbHelper.getRollups().rebuild(db);
+                dbHelper.getIntervals().rebuild(db);
+                dbHelper.getBatteryLevels().rebuild(db);
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            db.endTransaction();
+            if (!success) {
+                dbHelper.clearCaches();
+            }
+        }
+        
+        notifyChanged();
         return count;
     }
     
     /**
-     * This class is responsible for managing the application database. The
-     * database schema is initialized when the it is created, and upgraded after
-     * an application update.
-     * @author Pixmob
+     * Update events stored in the compact format, in a partition.
      */
-    private static class DatabaseHelper extends SQLiteOpenHelper {
-        public DatabaseHelper(final Context context) {
-            super(context, "netstat.db", null, 2);
+    private int updateEventData(SQLiteDatabase db, int partition,
+            ContentValues values, String selection, String[] selectionArgs,
+            Uri uri) {
+        final ContentValues data = new ContentValues(values.size());
+        final int flags = toEventData(db, values, data);
+        final int flagMask = getFlagMask(values);
+        if (data.size() == 0 && flagMask == 0) {
+            return 0;
         }
         
-        @Override
-        public void onCreate(SQLiteDatabase db) {
-            if (!db.isReadOnly()) {
-                String req = "CREATE TABLE " + EVENTS_TABLE + " (" + Events._ID
-                        + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-                        + Events.TIMESTAMP + " TIMESTAMP NOT NULL, "
-                        + Events.MOBILE_CONNECTED + " INTEGER NOT NULL, "
-                        + Events.MOBILE_OPERATOR + " TEXT, "
-                        + Events.WIFI_CONNECTED + " INTEGER NOT NULL, "
-                        + Events.BATTERY_LEVEL + " INTEGER NOT NULL, "
-                        + Events.SCREEN_ON + " INTEGER NOT NULL, "
-                        + Events.POWER_ON + " INTEGER NOT NULL)";
-                db.execSQL(req);
+        final StringBuilder sql = new StringBuilder(128);
+        sql.append("UPDATE ").append(EventPartitions.getTableName(partition)).append(" SET ");
+        final int numArgs = selectionArgs == null ? 0 : selectionArgs.length;
+        final Object[] args = new Object[data.size() + numArgs];
+        int i = 0;
+        for (final Map.Entry<String, Object> e : data.valueSet()) {
+            if (i != 0) {
+                sql.append(", ");
+            }
+            sql.append(e.getKey()).append("=?");
+            args[i++] = e.getValue();
+        }
+        if (flagMask != 0) {
+            // Only the updated states are modified in the bitfield.
+            if (i != 0) {
+                sql.append(", ");
             }
+            sql.append(DatabaseHelper.FLAGS).append("=(").append(DatabaseHelper.FLAGS).append(" & ")
+                    .append(~flagMask).append(") | ").append(flags);
+        }
+        final String partitionSelection = toEventDataSelection(partition, selection, uri);
+        if (partitionSelection != null) {
+            sql.append(" WHERE ").append(partitionSelection);
+        }
+        if (numArgs != 0) {
+            System.arraycopy(selectionArgs, 0, args, i, numArgs);
+        }
+        db.execSQL(sql.toString(), args);
+        
+        return (int) DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+    }
+    
+    /**
+     * Translate a selection on {@link Events} columns to a selection on a
+     * partition table. The time range from the Uri is included in the
+     * selection.
+     * @return <code>null</code> if every event in the partition is selected
+     */
+    private static String toEventDataSelection(int partition, String selection,
+            Uri uri) {
+        final String rangeSelection = getRangeSelection(uri);
+        if (TextUtils.isEmpty(selection)) {
+            // Columns used in the range selection are stored as is.
+            return rangeSelection;
         }
         
-        @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            if (!db.isReadOnly()) {
-                Log.w(TAG, "Upgrading database from version " + oldVersion
-                        + " to " + newVersion + " which will destroy all data");
-                db.execSQL("DROP TABLE IF EXISTS " + EVENTS_TABLE);
-                onCreate(db);
+        String fullSelection = "(" + selection + ")";
+        if (rangeSelection != null) {
+            fullSelection += " AND " + rangeSelection;
+        }
+        return Events._ID + " IN (SELECT " + Events._ID + " FROM ("
+                + EventPartitions.buildQuery(partition) + ") WHERE "
+                + fullSelection + ")";
+    }
+    
+    /**
+     * Get partitions overlapping the time range from a Uri.
+     */
+    private int[] getPartitions(SQLiteDatabase db, Uri uri) {
+        return dbHelper.getPartitions().getPartitions(db, getRangeStart(uri),
+            getRangeEnd(uri));
+    }
+    
+    private static long getRangeStart(Uri uri) {
+        final String from = uri.getQueryParameter(Events.PARAM_FROM);
+        return from == null ? Long.MIN_VALUE : Long.parseLong(from);
+    }
+    
+    private static long getRangeEnd(Uri uri) {
+        final String to = uri.getQueryParameter(Events.PARAM_TO);
+        return to == null ? Long.MAX_VALUE : Long.parseLong(to);
+    }
+    
+    /**
+     * Get a selection for the time range from a Uri.
+     * @return <code>null</code> if the Uri has no time range
+     */
+    private static String getRangeSelection(Uri uri) {
+        return getRangeSelection(uri, Events.TIMESTAMP);
+    }
+    
+    /**
+     * Get a selection for the time range from a Uri, on a given column.
+     * @return <code>null</code> if the Uri has no time range
+     */
+    private static String getRangeSelection(Uri uri, String column) {
+        final String from = uri.getQueryParameter(Events.PARAM_FROM);
+        final String to = uri.getQueryParameter(Events.PARAM_TO);
+        if (from == null && to == null) {
+            return null;
+        }
+        if (to == null) {
+            return column + ">=" + Long.parseLong(from);
+        }
+        if (from == null) {
+            return column + "<" + Long.parseLong(to);
+        }
+        return column + ">=" + Long.parseLong(from) + " AND " + column + "<"
+                + Long.parseLong(to);
+    }
+    
+    /**
+     * Read an event from {@link Events} values.
+     */
+    private static void toEvent(ContentValues values, Event e) {
+        final Long timestamp = toLong(values.get(Events.TIMESTAMP));
+        e.timestamp = timestamp == null ? 0 : timestamp;
+        e.screenOn = isTrue(values.get(Events.SCREEN_ON));
+        e.wifiConnected = isTrue(values.get(Events.WIFI_CONNECTED));
+        e.mobileConnected = isTrue(values.get(Events.MOBILE_CONNECTED));
+        final Object operator = values.get(Events.MOBILE_OPERATOR);
+        e.mobileOperator = operator == null ? null : operator.toString();
+        final Long batteryLevel = toLong(values.get(Events.BATTERY_LEVEL));
+        e.batteryLevel = batteryLevel == null ? 0 : batteryLevel.intValue();
+        e.powerOn = isTrue(values.get(Events.POWER_ON));
+    }
+    
+    /**
+     * Check that {@link Events} values can be inserted as a new event: every
+     * column must be supported, and the timestamp and battery level are
+     * required.
+     * @return event timestamp
+     */
+    private static long checkEventValues(ContentValues values) {
+        for (final Map.Entry<String, Object> e : values.valueSet()) {
+            final String key = e.getKey();
+            if (!Events._ID.equals(key) && !Events.TIMESTAMP.equals(key)
+                    && !Events.BATTERY_LEVEL.equals(key)
+                    && !Events.MOBILE_OPERATOR.equals(key) && getFlag(key) == 0) {
+                throw new IllegalArgumentException("Unsupported column: " + key);
             }
         }
+        final Long timestamp = toLong(values.get(Events.TIMESTAMP));
+        if (timestamp == null) {
+            throw new IllegalArgumentException("Missing event timestamp");
+        }
+        if (values.get(Events.BATTERY_LEVEL) == null) {
+            throw new SQLiteConstraintException("Missing event battery level");
+        }
+        return timestamp;
+    }
+    
+    /**
+     * Translate {@link Events} values to the compact storage format. Boolean
+     * states are not put in the target values.
+     * @return boolean states packed with the <code>Event.FLAG_*</code> values
+     */
+    private int toEventData(SQLiteDatabase db, ContentValues values,
+            ContentValues data) {
+        int flags = 0;
+        for (final Map.Entry<String, Object> e : values.valueSet()) {
+            final String key = e.getKey();
+            final Object value = e.getValue();
+            if (Events._ID.equals(key) || Events.TIMESTAMP.equals(key)
+                    || Events.BATTERY_LEVEL.equals(key)) {
+                data.put(key, toLong(value));
+            } else if (Events.MOBILE_OPERATOR.equals(key)) {
+                final long operatorId = dbHelper.getOperatorId(db,
+                    value == null ? null : value.toString());
+                if (operatorId == -1) {
+                    data.putNull(DatabaseHelper.OPERATOR_ID);
+                } else {
+                    data.put(DatabaseHelper.OPERATOR_ID, operatorId);
+                }
+            } else {
+                final int flag = getFlag(key);
+                if (flag == 0) {
+                    throw new IllegalArgumentException("Unsupported column: " + key);
+                }
+                if (isTrue(value)) {
+                    flags |= flag;
+                }
+            }
+        }
+        return flags;
+    }
+    
+    private static int getFlagMask(ContentValues values) {
+        int mask = 0;
+        for (final Map.Entry<String, Object> e : values.valueSet()) {
+            mask |= getFlag(e.getKey());
+        }
+        return mask;
+    }
+    
+    private static int getFlag(String column) {
+        if (Events.SCREEN_ON.equals(column)) {
+            return Event.FLAG_SCREEN_ON;
+        }
+        if (Events.WIFI_CONNECTED.equals(column)) {
+            return Event.FLAG_WIFI_CONNECTED;
+        }
+        if (Events.MOBILE_CONNECTED.equals(column)) {
+            return Event.FLAG_MOBILE_CONNECTED;
+        }
+        if (Events.POWER_ON.equals(column)) {
+            return Event.FLAG_POWER_ON;
+        }
+        return 0;
+    }
+    
+    private static Long toLong(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return Long.valueOf(value.toString());
+    }
+    
+    private static boolean isTrue(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).intValue() != 0;
+        }
+        return value != null && ("1".equals(value) || "true".equalsIgnoreCase(value.toString()));
     }
 }
@@ -39,13 +39,99 @@ public class NetstatContract {
         String POWER_ON = "power_on";
     }
     
+    protected static interface RollupsColumns {
+        /**
+         * Start time of the bucket (inclusive, in milliseconds).
+         */
+        String BUCKET_START = "bucket_start";
+        /**
+         * Time spent on the Orange network (in milliseconds).
+         */
+        String ORANGE_TIME = "orange_time";
+        /**
+         * Time spent on the Free Mobile network (in milliseconds).
+         */
+        String FREE_MOBILE_TIME = "free_mobile_time";
+        /**
+         * Time spent with Wi-Fi connected (in milliseconds).
+         */
+        String WIFI_TIME = "wifi_time";
+        /**
+         * Time spent with the screen on (in milliseconds).
+         */
+        String SCREEN_ON_TIME = "screen_on_time";
+    }
+    
+    protected static interface StateIntervalsColumns {
+        /**
+         * Start time of the interval (inclusive, in milliseconds).
+         */
+        String START = "start_time";
+        /**
+         * End time of the interval (exclusive, in milliseconds).
+         */
+        String END = "end_time";
+        String MOBILE_CONNECTED = "mobile_connected";
+        String MOBILE_OPERATOR = "mobile_operator";
+        String WIFI_CONNECTED = "wifi_connected";
+        String SCREEN_ON = "screen_on";
+        /**
+         * <code>0</code> if the device was off during the interval.
+         */
+        String POWER_ON = "power_on";
+    }
+    
+    protected static interface AggregatesColumns {
+        /**
+         * Time spent on the Orange network (in milliseconds).
+         */
+        String ORANGE_TIME = "orange_time";
+        /**
+         * Time spent on the Free Mobile network (in milliseconds).
+         */
+        String FREE_MOBILE_TIME = "free_mobile_time";
+        /**
+         * Time spent with Wi-Fi connected (in milliseconds).
+         */
+        String WIFI_TIME = "wifi_time";
+        /**
+         * Time spent with the screen on (in milliseconds).
+         */
+        String SCREEN_ON_TIME = "screen_on_time";
+        /**
+         * Battery level of the last event in the time range, or
+         * <code>null</code> if there is no event.
+         */
+        String BATTERY_LEVEL = "battery_level";
+    }
+    
+    protected static interface BatteryLevelsColumns {
+        /**
+         * Start time of the bucket (inclusive, in milliseconds).
+         */
+        String BUCKET_START = "bucket_start";
+        /**
+         * Lowest battery level in the bucket.
+         */
+        String MIN_LEVEL = "min_level";
+        /**
+         * Highest battery level in the bucket.
+         */
+        String MAX_LEVEL = "max_level";
+    }
+    
     /**
      * Table for events.
      * @author Pixmob
      */
     public static class Events implements BaseColumns, EventsColumns {
         /**
-         * The content:// style URI for this table.
+         * The content:// style URI for this table. Events older than the
+         * database retention period are read from archive segments.
+         * Archived events are only included when the query has no
+         * selection, when events are sorted by {@link #TIMESTAMP}, and when
+         * the projection only includes columns from this table: other
+         * queries only return events kept in the database.
          */
         public static final Uri CONTENT_URI = new Uri.Builder()
                 .scheme(ContentResolver.SCHEME_CONTENT).authority(AUTHORITY)
@@ -60,5 +146,234 @@ public class NetstatContract {
          * entries.
          */
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/event";
+        /**
+         * Query parameter for the start of a time range (inclusive, in
+         * milliseconds).
+         */
+        public static final String PARAM_FROM = "from";
+        /**
+         * Query parameter for the end of a time range (exclusive, in
+         * milliseconds).
+         */
+        public static final String PARAM_TO = "to";
+        /**
+         * Query parameter for the maximum number of deleted events. Old
+         * events may be deleted in small chunks, so that the database is not
+         * locked for a long time.
+         */
+        public static final String PARAM_LIMIT = "limit";
+        /**
+         * Parameter of a change notification Uri: identifier of the first
+         * inserted event. When this parameter is not set, any event may have
+         * been updated or deleted.
+         */
+        public static final String PARAM_FIRST_ID = "first_id";
+        /**
+         * Parameter of a change notification Uri: identifier of the last
+         * inserted event.
+         */
+        public static final String PARAM_LAST_ID = "last_id";
+        /**
+         * The content:// style URI returning a single row, with the
+         * {@link #_ID} column set to the identifier of the last inserted
+         * event (<code>0</code> if there is no event).
+         */
+        public static final Uri LATEST_ID_URI = CONTENT_URI.buildUpon()
+                .appendPath("latest").build();
+        
+        /**
+         * Build a Uri for events in a time range. Only database partitions
+         * overlapping this range are read.
+         * @param from range start (inclusive)
+         * @param to range end (exclusive)
+         */
+        public static Uri buildRangeUri(long from, long to) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PARAM_FROM, String.valueOf(from))
+                    .appendQueryParameter(PARAM_TO, String.valueOf(to)).build();
+        }
+        
+        /**
+         * Build a Uri for events inserted after a given event. Events are
+         * sorted by identifier by default. A time range may be added with
+         * {@link #PARAM_FROM} and {@link #PARAM_TO}.
+         * @param id identifier of the last known event
+         */
+        public static Uri buildSinceUri(long id) {
+            return CONTENT_URI.buildUpon().appendPath("since")
+                    .appendPath(String.valueOf(id)).build();
+        }
+        
+        /**
+         * Build a Uri for events older than a given time.
+         * @param to range end (exclusive)
+         */
+        public static Uri buildRangeUri(long to) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PARAM_TO, String.valueOf(to)).build();
+        }
+        
+        /**
+         * Build a Uri for deleting at most a given number of events older than
+         * a given time. The oldest events are deleted first.
+         * @param to range end (exclusive)
+         * @param limit maximum number of deleted events
+         */
+        public static Uri buildRangeUri(long to, int limit) {
+            return buildRangeUri(to).buildUpon()
+                    .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit)).build();
+        }
+    }
+    
+    /**
+     * Durations aggregated by hour or by day, updated when events are
+     * inserted. Hourly buckets start at UTC hour boundaries, and daily buckets
+     * start at local midnight. Rollups are kept when old events are deleted.
+     * A time range may be set with {@link Events#PARAM_FROM} and
+     * {@link Events#PARAM_TO}, on bucket start times.
+     * @author Pixmob
+     */
+    public static class Rollups implements RollupsColumns {
+        /**
+         * The content:// style URI for hourly rollups.
+         */
+        public static final Uri HOURLY_URI = Events.CONTENT_URI.buildUpon()
+                .appendPath("rollups").appendPath("hourly").build();
+        /**
+         * The content:// style URI for daily rollups.
+         */
+        public static final Uri DAILY_URI = Events.CONTENT_URI.buildUpon()
+                .appendPath("rollups").appendPath("daily").build();
+        /**
+         * The MIME type of {@link #HOURLY_URI} and {@link #DAILY_URI}
+         * providing a directory of entries.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/rollup";
+    }
+    
+    /**
+     * Intervals where the device state did not change, updated when events are
+     * inserted. The state of an interval is the state found at both ends: a
+     * mobile operator is only set if it's the same at both ends. Intervals are
+     * kept when old events are deleted. When a time range is set with
+     * {@link Events#PARAM_FROM} and {@link Events#PARAM_TO}, intervals
+     * overlapping this range are returned.
+     * @author Pixmob
+     */
+    public static class StateIntervals implements BaseColumns, StateIntervalsColumns {
+        /**
+         * The content:// style URI for this table.
+         */
+        public static final Uri CONTENT_URI = Events.CONTENT_URI.buildUpon()
+                .appendPath("intervals").build();
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of
+         * entries.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/state_interval";
+        
+        /**
+         * Build a Uri for intervals overlapping a time range.
+         * @param from range start (inclusive)
+         * @param to range end (exclusive)
+         */
+        public static Uri buildRangeUri(long from, long to) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(Events.PARAM_FROM, String.valueOf(from))
+                    .appendQueryParameter(Events.PARAM_TO, String.valueOf(to)).build();
+        }
+    }
+    
+    /**
+     * Battery levels downsampled at several resolutions, with the lowest and
+     * highest level for each bucket. Buckets start at UTC boundaries. Battery
+     * levels are kept when old events are deleted. A time range may be set
+     * with {@link Events#PARAM_FROM} and {@link Events#PARAM_TO}, on bucket
+     * start times.
+     * @author Pixmob
+     */
+    public static class BatteryLevels implements BatteryLevelsColumns {
+        /**
+         * The content:// style URI for this table.
+         */
+        public static final Uri CONTENT_URI = Events.CONTENT_URI.buildUpon()
+                .appendPath("battery").build();
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of
+         * entries.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/battery_level";
+        /**
+         * Query parameter for the bucket duration (in milliseconds). Supported
+         * values are the <code>RESOLUTION_*</code> constants.
+         */
+        public static final String PARAM_RESOLUTION = "resolution";
+        /**
+         * Raw battery levels: a bucket for each event.
+         */
+        public static final long RESOLUTION_RAW = 0;
+        public static final long RESOLUTION_MINUTE = 60 * 1000;
+        public static final long RESOLUTION_10_MINUTES = 10 * RESOLUTION_MINUTE;
+        public static final long RESOLUTION_HOUR = 60 * RESOLUTION_MINUTE;
+        
+        /**
+         * Get the coarsest resolution giving at least a given number of
+         * buckets for a time range.
+         * @param duration time range duration (in milliseconds)
+         * @param points number of points to show, such as a width in pixels
+         */
+        public static long getResolution(long duration, int points) {
+            final long[] resolutions = { RESOLUTION_HOUR, RESOLUTION_10_MINUTES, RESOLUTION_MINUTE };
+            for (final long resolution : resolutions) {
+                if (duration / resolution >= points) {
+                    return resolution;
+                }
+            }
+            return RESOLUTION_RAW;
+        }
+        
+        /**
+         * Build a Uri for battery levels in a time range, at a given
+         * resolution.
+         * @param from range start (inclusive)
+         * @param to range end (exclusive)
+         */
+        public static Uri buildRangeUri(long from, long to, long resolution) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(Events.PARAM_FROM, String.valueOf(from))
+                    .appendQueryParameter(Events.PARAM_TO, String.valueOf(to))
+                    .appendQueryParameter(PARAM_RESOLUTION, String.valueOf(resolution)).build();
+        }
+    }
+    
+    /**
+     * Durations and the last battery level in a time range, computed by the
+     * database: the result is a single row. Durations are read from state
+     * intervals, clipped to the time range set with {@link Events#PARAM_FROM}
+     * and {@link Events#PARAM_TO}. The time when the device was off is
+     * ignored.
+     * @author Pixmob
+     */
+    public static class Aggregates implements AggregatesColumns {
+        /**
+         * The content:// style URI for this table.
+         */
+        public static final Uri CONTENT_URI = Events.CONTENT_URI.buildUpon()
+                .appendPath("aggregate").build();
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a single entry.
+         */
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/aggregate";
+        
+        /**
+         * Build a Uri for aggregates in a time range.
+         * @param from range start (inclusive)
+         * @param to range end (exclusive)
+         */
+        public static Uri buildRangeUri(long from, long to) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(Events.PARAM_FROM, String.valueOf(from))
+                    .appendQueryParameter(Events.PARAM_TO, String.valueOf(to)).build();
+        }
     }
 }
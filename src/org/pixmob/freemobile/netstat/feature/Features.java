@@ -54,6 +54,14 @@ public final class Features {
             FEATURES.put(BackupManagerFeature.class,
                 new NoOpBackupManagerFeature());
         }
+        
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            FEATURES.put(WriteAheadLoggingFeature.class,
+                new HoneycombWriteAheadLoggingFeature());
+        } else {
+            FEATURES.put(WriteAheadLoggingFeature.class,
+                new LegacyWriteAheadLoggingFeature());
+        }
     }
     
     private Features() {
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.feature;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+
+/**
+ * Honeycomb {@link WriteAheadLoggingFeature} implementation.
+ * @author Pixmob
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+class HoneycombWriteAheadLoggingFeature implements WriteAheadLoggingFeature {
+    @Override
+    public void enable(SQLiteDatabase db) {
+        if (!db.isReadOnly() && db.enableWriteAheadLogging()) {
+            // With write-ahead logging, committed transactions are not lost
+            // if the application crashes: there is no need to sync the log
+            // for every transaction.
+            db.execSQL("PRAGMA synchronous=NORMAL");
+        }
+    }
+    
+    @Override
+    public void checkpoint(SQLiteDatabase db) {
+        // This pragma returns a result row, which must be read.
+        final Cursor c = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            c.moveToNext();
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.feature;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Compatibility interface for enabling write-ahead logging on a database.
+ * When write-ahead logging is enabled, readers and writers do not block each
+ * other. Nothing is done on devices where write-ahead logging is not
+ * available.
+ * @author Pixmob
+ */
+public interface WriteAheadLoggingFeature {
+    /**
+     * Enable write-ahead logging on a database, if it's available.
+     */
+    void enable(SQLiteDatabase db);
+    
+    /**
+     * Copy pages from the write-ahead log back into the database, without
+     * blocking readers nor writers.
+     */
+    void checkpoint(SQLiteDatabase db);
+}
@@ -15,9 +15,10 @@
  */
 package org.pixmob.freemobile.netstat.ui;
 
-import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.BatterySeries;
 import org.pixmob.freemobile.netstat.MobileOperator;
 import org.pixmob.freemobile.netstat.R;
+import org.pixmob.freemobile.netstat.StateInterval;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -50,7 +51,8 @@ public class BatteryChart extends View {
     private Paint batteryLevelPaint;
     private Paint cursorPaint;
     private Paint textCursorPaint;
-    private Event[] events;
+    private BatterySeries battery;
+    private StateInterval[] intervals;
     private float touchX = -1;
     private float graphLeft;
     private int graphRight;
@@ -77,8 +79,8 @@ public class BatteryChart extends View {
         if (MotionEvent.ACTION_DOWN == action || MotionEvent.ACTION_MOVE == action) {
             final float x = event.getX();
             if (x >= graphLeft && x <= graphRight) {
-                if (events != null && events.length != 0) {
-                    final long t0 = events[0].timestamp;
+                if (battery != null && battery.count != 0) {
+                    final long t0 = battery.timestamps[0];
                     final long t = Math.round((x - graphLeft) / getXFactor()) + t0;
                     textCursor = DateUtils.formatDateTime(getContext(), t, textCursorFormat);
 
@@ -97,11 +99,11 @@ public class BatteryChart extends View {
     }
 
     private float getXFactor() {
-        if (events == null || events.length == 0) {
+        if (battery == null || battery.count == 0) {
             return 0;
         }
 
-        return (graphRight - graphLeft) / (events[events.length - 1].timestamp - events[0].timestamp);
+        return (graphRight - graphLeft) / (battery.timestamps[battery.count - 1] - battery.timestamps[0]);
     }
 
     private void doDraw(Canvas canvas) {
@@ -143,61 +145,70 @@ public class BatteryChart extends View {
             lines[lineIdx++] = y;
         }
 
-        final boolean drawChart = events != null && events.length > 1;
+        final boolean drawChart = battery != null && battery.count > 1;
         Path batteryLevelBorderPath = null;
 
         if (drawChart) {
-            final long t0 = events[0].timestamp;
+            final long t0 = battery.timestamps[0];
             final float xFactor = getXFactor();
 
-            final int eventCount = events.length;
+            final int pointCount = battery.count;
 
             final Path batteryPath = new Path();
             batteryPath.moveTo(graphLeft, graphBottom);
-            batteryPath.incReserve(eventCount + 2);
+            batteryPath.incReserve(2 * pointCount + 2);
             float lastY = 0;
 
-            for (int i = 0; i < eventCount; ++i) {
-                final Event e = events[i];
-                float x = (e.timestamp - t0) * xFactor + graphLeft;
+            for (int i = 0; i < pointCount; ++i) {
+                float x = (battery.timestamps[i] - t0) * xFactor + graphLeft;
                 if (x < graphLeft) {
                     continue;
                 }
-                final float y = graphBottom - e.batteryLevel * yFactor;
-
+                final float yMin = graphBottom - battery.minLevels[i] * yFactor;
+                final float yMax = graphBottom - battery.maxLevels[i] * yFactor;
+
+                // Both the lowest and highest levels are drawn, so that
+                // spikes are visible: the closest one is drawn first.
+                final float y1;
+                final float y2;
+                if (i != 0 && Math.abs(lastY - yMax) < Math.abs(lastY - yMin)) {
+                    y1 = yMax;
+                    y2 = yMin;
+                } else {
+                    y1 = yMin;
+                    y2 = yMax;
+                }
                 if (i != 0) {
-                    batteryPath.lineTo(x, y);
+                    batteryPath.lineTo(x, y1);
                 } else {
-                    batteryPath.moveTo(x, y);
+                    batteryPath.moveTo(x, y1);
                 }
-                lastY = y;
-
-                final MobileOperator mobOp = MobileOperator.fromString(e.mobileOperator);
-                if (mobOp != null) {
-                    float x2 = graphLeft;
-                    if (i != 0) {
-                        final Event e0 = events[i - 1];
-                        if (e.powerOn && !e0.powerOn) {
-                            continue;
-                        }
-
-                        final MobileOperator mobOp0 = MobileOperator.fromString(e0.mobileOperator);
-                        if (mobOp0 != null) {
-                            if (MobileOperator.FREE_MOBILE.equals(mobOp0)) {
-                                mobileOperatorPaint.setColor(freeMobileColor);
-                            } else if (MobileOperator.ORANGE.equals(mobOp0)) {
-                                mobileOperatorPaint.setColor(orangeColor);
-                            }
-
-                            x2 = (e0.timestamp - t0) * xFactor + graphLeft;
-                            if (x2 < graphLeft) {
-                                x2 = graphLeft;
-                            }
-                            if (x2 > graphRight) {
-                                x2 = graphRight;
-                            }
-                            canvas.drawLine(x2, y0Mob, x, y0Mob, mobileOperatorPaint);
-                        }
+                if (y2 != y1) {
+                    batteryPath.lineTo(x, y2);
+                }
+                lastY = y2;
+            }
+
+            // The mobile operator band is drawn from state intervals, with a
+            // line for each interval on a known network.
+            if (intervals != null) {
+                for (final StateInterval si : intervals) {
+                    if (!si.powerOn) {
+                        continue;
+                    }
+                    final MobileOperator mobOp = MobileOperator.fromString(si.mobileOperator);
+                    if (MobileOperator.FREE_MOBILE.equals(mobOp)) {
+                        mobileOperatorPaint.setColor(freeMobileColor);
+                    } else if (MobileOperator.ORANGE.equals(mobOp)) {
+                        mobileOperatorPaint.setColor(orangeColor);
+                    } else {
+                        continue;
+                    }
+
+                    final float x1 = Math.max(graphLeft, (si.start - t0) * xFactor + graphLeft);
+                    final float x2 = Math.min(graphRight, (si.end - t0) * xFactor + graphLeft);
+                    if (x1 < x2) {
+                        canvas.drawLine(x1, y0Mob, x2, y0Mob, mobileOperatorPaint);
                     }
                 }
             }
@@ -326,12 +337,13 @@ public class BatteryChart extends View {
                 .getDisplayMetrics());
     }
 
-    public void setData(Event[] events) {
-        this.events = events;
+    public void setData(BatterySeries battery, StateInterval[] intervals) {
+        this.battery = battery;
+        this.intervals = intervals;
         invalidateCache();
 
-        if (events != null && events.length != 0) {
-            final long duration = events[events.length - 1].timestamp - events[0].timestamp;
+        if (battery != null && battery.count != 0) {
+            final long duration = battery.timestamps[battery.count - 1] - battery.timestamps[0];
             if (duration >= 86400 * 1000) {
                 // Over a day: show date+time.
                 textCursorFormat = DateUtils.FORMAT_SHOW_DATE;
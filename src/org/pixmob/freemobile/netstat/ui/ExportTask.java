@@ -25,12 +25,12 @@ import java.io.OutputStreamWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
+import org.pixmob.freemobile.netstat.Event;
 import org.pixmob.freemobile.netstat.R;
-import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+import org.pixmob.freemobile.netstat.content.EventStore;
 import org.pixmob.freemobile.netstat.util.IOUtils;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Environment;
 import android.support.v4.app.DialogFragment;
@@ -141,18 +141,14 @@ class ExportTask extends AsyncTask<Void, Integer, Boolean> {
         final BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
                 new FileOutputStream(outputFile), "UTF-8"));
         
-        final Cursor c = context.getContentResolver().query(
-            Events.CONTENT_URI,
-            new String[] { Events.TIMESTAMP, Events.MOBILE_OPERATOR,
-                    Events.MOBILE_CONNECTED, Events.WIFI_CONNECTED,
-                    Events.BATTERY_LEVEL, Events.SCREEN_ON, Events.POWER_ON },
-            null, null, null);
+        // Events are streamed from the database in this process, without
+        // going through the content provider.
+        final EventStore store = new EventStore(context);
+        final int rowCount = store.countEvents(Long.MIN_VALUE, Long.MAX_VALUE);
+        final StringBuilder buf = new StringBuilder(1024);
+        final IOException[] error = new IOException[1];
         
         try {
-            final int rowCount = c.getCount();
-            int currentRow = 0;
-            
-            final StringBuilder buf = new StringBuilder(1024);
             buf.append("Timestamp").append(COL_SEP).append("Mobile Operator")
                     .append(COL_SEP).append("Mobile Connected").append(COL_SEP)
                     .append("Wi-Fi Connected").append(COL_SEP)
@@ -160,28 +156,40 @@ class ExportTask extends AsyncTask<Void, Integer, Boolean> {
                     .append(COL_SEP).append("Power On").append(LINE_SEP);
             out.write(buf.toString());
             
-            while (c.moveToNext()) {
-                final long t = c.getLong(0);
-                final String mobOp = c.isNull(1) ? "" : c.getString(1);
-                final int mobConn = c.getInt(2) == 1 ? 1 : 0;
-                final int wifiOn = c.getInt(3) == 1 ? 1 : 0;
-                final int bat = c.getInt(4);
-                final int screenOn = c.getInt(5) == 1 ? 1 : 0;
-                final int powerOn = c.getInt(6) == 1 ? 1 : 0;
-                
-                buf.delete(0, buf.length());
-                buf.append(dateFormatter.format(t)).append(COL_SEP)
-                        .append(mobOp).append(COL_SEP).append(mobConn)
-                        .append(COL_SEP).append(wifiOn).append(COL_SEP)
-                        .append(screenOn).append(COL_SEP).append(bat)
-                        .append(COL_SEP).append(powerOn).append(LINE_SEP);
-                out.write(buf.toString());
+            store.visitEvents(Long.MIN_VALUE, Long.MAX_VALUE, new EventStore.Visitor() {
+                private int currentRow;
                 
-                publishProgress(++currentRow, rowCount);
+                @Override
+                public boolean visit(long t, int flags, String mobileOperator,
+                        int bat) {
+                    final String mobOp = mobileOperator == null ? "" : mobileOperator;
+                    final int mobConn = (flags & Event.FLAG_MOBILE_CONNECTED) != 0 ? 1 : 0;
+                    final int wifiOn = (flags & Event.FLAG_WIFI_CONNECTED) != 0 ? 1 : 0;
+                    final int screenOn = (flags & Event.FLAG_SCREEN_ON) != 0 ? 1 : 0;
+                    final int powerOn = (flags & Event.FLAG_POWER_ON) != 0 ? 1 : 0;
+                    
+                    buf.delete(0, buf.length());
+                    buf.append(dateFormatter.format(t)).append(COL_SEP)
+                            .append(mobOp).append(COL_SEP).append(mobConn)
+                            .append(COL_SEP).append(wifiOn).append(COL_SEP)
+                            .append(screenOn).append(COL_SEP).append(bat)
+                            .append(COL_SEP).append(powerOn).append(LINE_SEP);
+                    try {
+                        out.write(buf.toString());
+                    } catch (IOException e) {
+                        error[0] = e;
+                        return false;
+                    }
+                    
+                    publishProgress(++currentRow, rowCount);
+                    return true;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
             }
         } finally {
             IOUtils.close(out);
-            c.close();
         }
     }
 }
@@ -26,9 +26,16 @@ import static org.pixmob.freemobile.netstat.Constants.TAG;
 import java.util.Calendar;
 import java.util.Date;
 
+import org.pixmob.freemobile.netstat.BatteryDownsampler;
+import org.pixmob.freemobile.netstat.BatterySeries;
+import org.pixmob.freemobile.netstat.DurationIndex;
 import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.IntervalDownsampler;
 import org.pixmob.freemobile.netstat.MobileOperator;
 import org.pixmob.freemobile.netstat.R;
+import org.pixmob.freemobile.netstat.StateInterval;
+import org.pixmob.freemobile.netstat.content.EventStore;
+import org.pixmob.freemobile.netstat.content.NetstatContract.BatteryLevels;
 import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
 import org.pixmob.freemobile.netstat.ui.StatisticsFragment.Statistics;
 import org.pixmob.freemobile.netstat.util.DateUtils;
@@ -39,7 +46,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.ContentObserver;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.SystemClock;
@@ -49,6 +55,7 @@ import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.Loader;
 import android.telephony.TelephonyManager;
 import android.text.format.Time;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -215,7 +222,13 @@ public class StatisticsFragment extends Fragment implements LoaderCallbacks<Stat
     public Loader<Statistics> onCreateLoader(int id, Bundle args) {
         progressBar.setVisibility(View.VISIBLE);
 
-        return new StatisticsLoader(getActivity());
+        // The chart is never wider than the screen.
+        int chartWidth = batteryChart.getWidth();
+        if (chartWidth <= 0) {
+            final DisplayMetrics dm = getActivity().getResources().getDisplayMetrics();
+            chartWidth = Math.max(dm.widthPixels, dm.heightPixels);
+        }
+        return new StatisticsLoader(getActivity(), chartWidth);
     }
 
     @Override
@@ -240,7 +253,7 @@ public class StatisticsFragment extends Fragment implements LoaderCallbacks<Stat
 
         statBattery.setText(s.battery == 0 ? STAT_NO_VALUE : String.valueOf(s.battery) + "%");
 
-        batteryChart.setData(s.events);
+        batteryChart.setData(s.batterySeries, s.intervals);
 
         progressBar.setVisibility(View.INVISIBLE);
         statisticsGroup.setVisibility(View.VISIBLE);
@@ -269,8 +282,31 @@ public class StatisticsFragment extends Fragment implements LoaderCallbacks<Stat
      * @author Pixmob
      */
     private static class StatisticsLoader extends AsyncTaskLoader<Statistics> {
-        public StatisticsLoader(final Context context) {
+        /**
+         * Number of time intervals, from the <code>INTERVAL_*</code> values.
+         */
+        private static final int INTERVAL_COUNT = INTERVAL_ONE_MONTH + 1;
+        /**
+         * Maximum change of an interval start for cached statistics.
+         */
+        private static final long CACHE_TOLERANCE = 60 * 1000;
+        /**
+         * Statistics computed for each interval, kept until new data is
+         * available: switching between intervals is instant. Cached instances
+         * are never modified: a copy is delivered instead.
+         */
+        private static final Statistics[] CACHE = new Statistics[INTERVAL_COUNT];
+        private static final int[] cacheVersions = new int[INTERVAL_COUNT];
+        private static final long[] cacheStarts = new long[INTERVAL_COUNT];
+
+        /**
+         * Chart width, in pixels.
+         */
+        private final int chartWidth;
+
+        public StatisticsLoader(final Context context, final int chartWidth) {
             super(context);
+            this.chartWidth = chartWidth;
 
             if (DEBUG) {
                 Log.d(TAG, "New StatisticsLoader");
@@ -297,32 +333,47 @@ public class StatisticsFragment extends Fragment implements LoaderCallbacks<Stat
 
             final SharedPreferences prefs = getContext().getSharedPreferences(SP_NAME, Context.MODE_PRIVATE);
             final int interval = prefs.getInt(SP_KEY_TIME_INTERVAL, 0);
-            final long fromTimestamp;
-            if (interval == INTERVAL_ONE_MONTH) {
-                final Calendar cal = Calendar.getInstance();
-                cal.setTimeInMillis(now);
-                cal.add(Calendar.MONTH, -1);
-                fromTimestamp = cal.getTimeInMillis();
-            } else if (interval == INTERVAL_ONE_WEEK) {
-                final Calendar cal = Calendar.getInstance();
-                cal.setTimeInMillis(now);
-                cal.add(Calendar.DATE, -7);
-                fromTimestamp = cal.getTimeInMillis();
-            } else if (interval == INTERVAL_TODAY) {
-                // Get the date at midnight today.
-                final Time t = new Time();
-                t.set(now);
-                t.hour = 0;
-                t.minute = 0;
-                t.second = 0;
-                fromTimestamp = t.toMillis(false);
+            final long[] starts = new long[INTERVAL_COUNT];
+            for (int i = 0; i < INTERVAL_COUNT; ++i) {
+                starts[i] = getIntervalStart(i, now);
+            }
+            final long fromTimestamp = starts[interval];
+
+            // Statistics are read from the database in this process, without
+            // going through the content provider.
+            final EventStore store = new EventStore(getContext());
+            final int dataVersion = store.getDataVersion();
+
+            Statistics s;
+            synchronized (CACHE) {
+                s = CACHE[interval];
+                if (s != null && (cacheVersions[interval] != dataVersion
+                        || Math.abs(cacheStarts[interval] - fromTimestamp) > CACHE_TOLERANCE)) {
+                    s = null;
+                }
+            }
+            if (s == null) {
+                Log.i(TAG, "Loading statistics from " + new Date(fromTimestamp) + " to now");
+                s = load(store, starts, interval, now);
+                if (s != null) {
+                    synchronized (CACHE) {
+                        CACHE[interval] = s;
+                        cacheVersions[interval] = dataVersion;
+                        cacheStarts[interval] = fromTimestamp;
+                    }
+                    s = s.copy();
+                } else {
+                    s = new Statistics();
+                }
             } else {
-                fromTimestamp = now - SystemClock.elapsedRealtime();
+                s = s.copy();
+                if (DEBUG) {
+                    Log.d(TAG, "Statistics read from cache");
+                }
             }
 
-            Log.i(TAG, "Loading statistics from " + new Date(fromTimestamp) + " to now");
-
-            final Statistics s = new Statistics();
+            // Values depending on the current time are not cached.
+            s.connectionTime = now - s.connectionTimestamp;
 
             final TelephonyManager tm = (TelephonyManager) getContext().getSystemService(
                     Context.TELEPHONY_SERVICE);
@@ -332,103 +383,163 @@ public class StatisticsFragment extends Fragment implements LoaderCallbacks<Stat
                 s.mobileOperatorCode = null;
             }
 
-            long connectionTimestamp = 0;
+            if (DEBUG) {
+                final long end = System.currentTimeMillis();
+                Log.d(TAG, "Statistics loaded in " + (end - now) + " ms");
+            }
+
+            return s;
+        }
 
-            Cursor c = null;
+        /**
+         * Compute statistics for an interval. Durations are computed from the
+         * index shared in the application process, which covers every
+         * interval: switching between intervals does not read events again.
+         * @return <code>null</code> if statistics could not be loaded
+         */
+        private Statistics load(EventStore store, long[] starts, int interval, long now) {
+            final long fromTimestamp = starts[interval];
+            final Statistics s = new Statistics();
             try {
-                c = getContext().getContentResolver().query(
-                        Events.CONTENT_URI,
-                        new String[] { Events.TIMESTAMP, Events.SCREEN_ON, Events.WIFI_CONNECTED,
-                                Events.MOBILE_CONNECTED, Events.MOBILE_OPERATOR, Events.BATTERY_LEVEL,
-                                Events.POWER_ON }, Events.TIMESTAMP + ">?",
-                        new String[] { String.valueOf(fromTimestamp) }, Events.TIMESTAMP + " ASC");
-                final int rowCount = c.getCount();
-                s.events = new Event[rowCount];
-                for (int i = 0; c.moveToNext(); ++i) {
-                    final Event e = new Event();
-                    e.read(c);
-                    s.events[i] = e;
-
-                    if (i > 0) {
-                        final Event e0 = s.events[i - 1];
-                        if (e.powerOn && !e0.powerOn) {
-                            continue;
-                        }
-                        final long dt = e.timestamp - e0.timestamp;
-
-                        final MobileOperator op = MobileOperator.fromString(e.mobileOperator);
-                        final MobileOperator op0 = MobileOperator.fromString(e0.mobileOperator);
-                        if (op != null && op.equals(op0)) {
-                            if (MobileOperator.ORANGE.equals(op)) {
-                                s.orangeTime += dt;
-                            } else if (MobileOperator.FREE_MOBILE.equals(op)) {
-                                s.freeMobileTime += dt;
-                            }
-                        }
-                        if (e.mobileConnected && !e0.mobileConnected) {
-                            connectionTimestamp = e.timestamp;
-                        }
-                        if (!e.mobileConnected) {
-                            connectionTimestamp = 0;
-                        }
-                        if (e.wifiConnected && e0.wifiConnected) {
-                            s.wifiOnTime += dt;
-                        }
-                        if (e.screenOn && e0.screenOn) {
-                            s.screenOnTime += dt;
-                        }
+                // The index is kept between refreshes: only new events are
+                // read. Durations are computed up to the last event.
+                long oldestStart = fromTimestamp;
+                for (final long start : starts) {
+                    oldestStart = Math.min(oldestStart, start);
+                }
+                final DurationIndex index = store.getDurationIndex();
+                final EventStore.Totals totals = new EventStore.Totals();
+                synchronized (index) {
+                    index.update(store, oldestStart);
+                    final long to = index.getLastTimestamp();
+                    if (index.covers(fromTimestamp, to)) {
+                        index.query(fromTimestamp, to, totals);
+                    } else if (to != -1) {
+                        store.readTotals(fromTimestamp, to, totals);
                     }
                 }
-
-                if (s.events.length > 0) {
-                    s.battery = s.events[s.events.length - 1].batteryLevel;
+                s.orangeTime = totals.orangeTime;
+                s.freeMobileTime = totals.freeMobileTime;
+                s.wifiOnTime = totals.wifiTime;
+                s.screenOnTime = totals.screenOnTime;
+
+                // State intervals are only read for the chart: they are
+                // downsampled to the chart width, without keeping rows in
+                // memory.
+                final IntervalDownsampler intervals = new IntervalDownsampler(fromTimestamp, now + 1, chartWidth);
+                store.readIntervals(fromTimestamp, Long.MAX_VALUE, intervals);
+                s.intervals = intervals.getIntervals();
+
+                // The last event gives the battery level, and when the mobile
+                // connection started: at the last event if the previous
+                // interval was not connected, or earlier if connected
+                // intervals end with this event.
+                final Event last = Event.obtain();
+                if (store.readLastEvent(Long.MAX_VALUE, last)) {
+                    if (last.timestamp >= fromTimestamp) {
+                        s.battery = Math.max(last.batteryLevel, 0);
+                    }
+                    if (last.mobileConnected) {
+                        final long connectionStart = intervals.getConnectionStart(last.timestamp);
+                        s.connectionTimestamp = connectionStart == -1 ? last.timestamp : connectionStart;
+                    }
                 }
+                last.recycle();
+
+                // Battery levels are downsampled to a point per pixel of the
+                // chart, without keeping rows in memory.
+                final long resolution = BatteryLevels.getResolution(now - fromTimestamp, chartWidth);
+                final BatteryDownsampler downsampler = new BatteryDownsampler(fromTimestamp, now + 1, chartWidth);
+                store.readBatteryLevels(fromTimestamp, now + 1, resolution, downsampler);
+                s.batterySeries = downsampler.getSeries();
 
                 final double sTime = s.orangeTime + s.freeMobileTime;
                 s.freeMobileUsePercent = (int) Math.round(s.freeMobileTime / sTime * 100d);
                 s.orangeUsePercent = 100 - s.freeMobileUsePercent;
-                s.connectionTime = now - connectionTimestamp;
             } catch (Exception e) {
                 Log.e(TAG, "Failed to load statistics", e);
-                s.events = new Event[0];
-            } finally {
-                try {
-                    if (c != null) {
-                        c.close();
-                    }
-                } catch (Exception ignore) {
-                }
+                return null;
             }
+            return s;
+        }
 
-            if (DEBUG) {
-                final long end = System.currentTimeMillis();
-                Log.d(TAG, "Statistics loaded in " + (end - now) + " ms");
+        /**
+         * Get the start time of an interval.
+         */
+        private static long getIntervalStart(int interval, long now) {
+            if (interval == INTERVAL_ONE_MONTH) {
+                final Calendar cal = Calendar.getInstance();
+                cal.setTimeInMillis(now);
+                cal.add(Calendar.MONTH, -1);
+                return cal.getTimeInMillis();
             }
-
-            return s;
+            if (interval == INTERVAL_ONE_WEEK) {
+                final Calendar cal = Calendar.getInstance();
+                cal.setTimeInMillis(now);
+                cal.add(Calendar.DATE, -7);
+                return cal.getTimeInMillis();
+            }
+            if (interval == INTERVAL_TODAY) {
+                // Get the date at midnight today.
+                final Time t = new Time();
+                t.set(now);
+                t.hour = 0;
+                t.minute = 0;
+                t.second = 0;
+                return t.toMillis(false);
+            }
+            return now - SystemClock.elapsedRealtime();
         }
     }
 
     /**
-     * Store statistics.
+     * Store statistics. The battery series and the state intervals are shared
+     * between copies, and must not be modified.
      * @author Pixmob
      */
     public static class Statistics {
-        public Event[] events = new Event[0];
+        public BatterySeries batterySeries = new BatterySeries();
+        public StateInterval[] intervals = new StateInterval[0];
         public long orangeTime;
         public long freeMobileTime;
         public int orangeUsePercent;
         public int freeMobileUsePercent;
         public MobileOperator mobileOperator;
         public String mobileOperatorCode;
+        /**
+         * Time when the mobile connection started, or <code>0</code> if the
+         * mobile network is not connected.
+         */
+        public long connectionTimestamp;
         public long connectionTime;
         public long screenOnTime;
         public long wifiOnTime;
         public int battery;
 
+        /**
+         * Create a copy of these statistics.
+         */
+        public Statistics copy() {
+            final Statistics s = new Statistics();
+            s.batterySeries = batterySeries;
+            s.intervals = intervals;
+            s.orangeTime = orangeTime;
+            s.freeMobileTime = freeMobileTime;
+            s.orangeUsePercent = orangeUsePercent;
+            s.freeMobileUsePercent = freeMobileUsePercent;
+            s.mobileOperator = mobileOperator;
+            s.mobileOperatorCode = mobileOperatorCode;
+            s.connectionTimestamp = connectionTimestamp;
+            s.connectionTime = connectionTime;
+            s.screenOnTime = screenOnTime;
+            s.wifiOnTime = wifiOnTime;
+            s.battery = battery;
+            return s;
+        }
+
         @Override
         public String toString() {
-            return "Statistics[events=" + events.length + "; orange=" + orangeUsePercent + "%; free="
+            return "Statistics[battery=" + batterySeries.count + "; intervals=" + intervals.length + "; orange=" + orangeUsePercent + "%; free="
                     + freeMobileUsePercent + "%]";
         }
     }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat;
+
+import org.pixmob.freemobile.netstat.content.EventStore;
+import org.pixmob.freemobile.netstat.content.EventWriter;
+import org.pixmob.freemobile.netstat.content.SyntheticEvents;
+import org.pixmob.freemobile.netstat.content.TestDatabase;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for durations computed from the index, compared with durations
+ * computed from every synthetic event.
+ * @author Pixmob
+ */
+public class DurationIndexTest extends AndroidTestCase {
+    private static final int EVENT_COUNT = 12000;
+    private TestDatabase database;
+    private EventWriter writer;
+    private EventStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        database = new TestDatabase(getContext(), "index-test.db");
+        writer = database.createWriter();
+        store = database.createStore();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        writer.close();
+        database.close();
+        super.tearDown();
+    }
+
+    public void testQuery() {
+        SyntheticEvents.write(writer, EVENT_COUNT);
+        final DurationIndex index = new DurationIndex();
+        index.update(store, SyntheticEvents.FIRST_TIMESTAMP);
+        assertEquals(SyntheticEvents.getEnd(EVENT_COUNT - 1), index.getLastTimestamp());
+        assertRanges(index, SyntheticEvents.FIRST_TIMESTAMP);
+    }
+
+    public void testIncrementalUpdate() {
+        SyntheticEvents.write(writer, EVENT_COUNT / 2);
+        final DurationIndex index = new DurationIndex();
+        index.update(store, SyntheticEvents.FIRST_TIMESTAMP);
+        assertFalse(index.covers(SyntheticEvents.FIRST_TIMESTAMP, SyntheticEvents.getEnd(EVENT_COUNT - 1)));
+
+        // Only new events are added to the index.
+        SyntheticEvents.write(writer, EVENT_COUNT / 2, EVENT_COUNT);
+        index.update(store, SyntheticEvents.FIRST_TIMESTAMP);
+        assertRanges(index, SyntheticEvents.FIRST_TIMESTAMP);
+    }
+
+    public void testMoveStart() {
+        SyntheticEvents.write(writer, EVENT_COUNT);
+        final DurationIndex index = new DurationIndex();
+        index.update(store, SyntheticEvents.FIRST_TIMESTAMP);
+
+        // Events before the new start are dropped.
+        final long start = SyntheticEvents.getEnd(EVENT_COUNT * 3 / 4) + SyntheticEvents.EVENT_INTERVAL / 3;
+        index.update(store, start);
+        assertEquals(start, index.getStart());
+        assertFalse(index.covers(SyntheticEvents.FIRST_TIMESTAMP, start));
+        assertRanges(index, start);
+
+        // Events are read again when the start moves backward.
+        index.update(store, SyntheticEvents.FIRST_TIMESTAMP);
+        assertRanges(index, SyntheticEvents.FIRST_TIMESTAMP);
+    }
+
+    /**
+     * Check durations in ranges starting and ending at events or between
+     * events, after a given time.
+     */
+    private static void assertRanges(DurationIndex index, long start) {
+        final long end = SyntheticEvents.getEnd(EVENT_COUNT - 1);
+        final long step = (end - start) / 7 + SyntheticEvents.EVENT_INTERVAL / 4;
+        final EventStore.Totals actual = new EventStore.Totals();
+        final EventStore.Totals expected = new EventStore.Totals();
+        for (long from = start; from < end; from += step) {
+            for (long to = from; to <= end; to += step / 3) {
+                assertTrue(index.covers(from, to));
+                index.query(from, to, actual);
+                computeTotals(from, to, expected);
+                assertEquals("Orange time from " + from + " to " + to, expected.orangeTime, actual.orangeTime);
+                assertEquals("Free Mobile time from " + from + " to " + to, expected.freeMobileTime,
+                    actual.freeMobileTime);
+                assertEquals("Wi-Fi time from " + from + " to " + to, expected.wifiTime, actual.wifiTime);
+                assertEquals("Screen time from " + from + " to " + to, expected.screenOnTime,
+                    actual.screenOnTime);
+            }
+        }
+    }
+
+    /**
+     * Compute durations in a range from every synthetic event.
+     */
+    private static void computeTotals(long from, long to, EventStore.Totals totals) {
+        totals.orangeTime = 0;
+        totals.freeMobileTime = 0;
+        totals.wifiTime = 0;
+        totals.screenOnTime = 0;
+        final Event previous = Event.obtain();
+        final Event e = Event.obtain();
+        SyntheticEvents.set(previous, 0);
+        for (int i = 1; i < EVENT_COUNT; ++i) {
+            SyntheticEvents.set(e, i);
+            final long dt = Math.min(e.timestamp, to) - Math.max(previous.timestamp, from);
+            if (dt > 0) {
+                final int c = DurationIndex.getCategories(previous.flags(), previous.mobileOperator, e.flags(),
+                    e.mobileOperator);
+                if ((c & DurationIndex.CATEGORY_ORANGE) != 0) {
+                    totals.orangeTime += dt;
+                }
+                if ((c & DurationIndex.CATEGORY_FREE_MOBILE) != 0) {
+                    totals.freeMobileTime += dt;
+                }
+                if ((c & DurationIndex.CATEGORY_WIFI) != 0) {
+                    totals.wifiTime += dt;
+                }
+                if ((c & DurationIndex.CATEGORY_SCREEN_ON) != 0) {
+                    totals.screenOnTime += dt;
+                }
+            }
+            SyntheticEvents.set(previous, i);
+        }
+        previous.recycle();
+        e.recycle();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the order of events read from the buffer, when events are kept
+ * aside in the overflow area.
+ * @author Pixmob
+ */
+public class EventRingBufferTest extends TestCase {
+    private static final int CAPACITY = 4;
+    private static final int EVENT_COUNT = 200000;
+
+    public void testOverflowOrder() {
+        final EventRingBuffer buffer = new EventRingBuffer(CAPACITY);
+        for (int i = 0; i < CAPACITY + 2; ++i) {
+            assertEquals(i <= CAPACITY, buffer.offer(createEvent(i)));
+        }
+        assertEquals(0, buffer.poll().timestamp);
+
+        // The first event kept aside is published, the new event is kept
+        // aside.
+        assertFalse(buffer.offer(createEvent(CAPACITY + 2)));
+        for (int i = 1; i < CAPACITY + 3; ++i) {
+            assertEquals(i, buffer.poll().timestamp);
+        }
+        assertNull(buffer.poll());
+    }
+
+    public void testConcurrentOrder() throws InterruptedException {
+        final EventRingBuffer buffer = new EventRingBuffer(CAPACITY);
+        final Thread producer = new Thread("Test/Producer") {
+            @Override
+            public void run() {
+                for (int i = 0; i < EVENT_COUNT; ++i) {
+                    buffer.offer(createEvent(i));
+                }
+                buffer.close();
+            }
+        };
+        producer.start();
+
+        // Events may be dropped, but never reordered.
+        long last = -1;
+        for (Event e; (e = buffer.take()) != null;) {
+            assertTrue("Event " + e.timestamp + " read after event " + last, e.timestamp > last);
+            last = e.timestamp;
+            e.recycle();
+        }
+        producer.join();
+        assertEquals(EVENT_COUNT - 1, last);
+    }
+
+    /**
+     * Create an event with a state different from the previous event.
+     */
+    private static Event createEvent(int i) {
+        final Event e = Event.obtain();
+        e.timestamp = i;
+        e.screenOn = i % 2 == 0;
+        return e;
+    }
+}
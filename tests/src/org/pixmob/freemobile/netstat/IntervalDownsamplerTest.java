@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for state intervals downsampled to chart buckets.
+ * @author Pixmob
+ */
+public class IntervalDownsamplerTest extends TestCase {
+    private static final int BUCKET_COUNT = 100;
+    private static final long RANGE = 100000;
+
+    public void testBucketLimit() {
+        final IntervalDownsampler downsampler = new IntervalDownsampler(0, RANGE, BUCKET_COUNT);
+        // The mobile operator changes every bucket, and the mobile network
+        // is lost for a short time several times in each bucket.
+        for (int i = 0; i < RANGE / 10; ++i) {
+            final boolean connected = i % 5 != 4;
+            final String mobileOperator = !connected ? null : i / 100 % 2 == 0 ? "20815" : "20801";
+            downsampler.add(createInterval(i * 10, i * 10 + 10, mobileOperator, connected));
+        }
+        final StateInterval[] intervals = downsampler.getIntervals();
+        assertEquals(BUCKET_COUNT, intervals.length);
+        for (int i = 1; i < intervals.length; ++i) {
+            assertTrue(intervals[i].start >= intervals[i - 1].end);
+        }
+        assertEquals(RANGE, intervals[intervals.length - 1].end);
+    }
+
+    public void testMergeAndClip() {
+        final IntervalDownsampler downsampler = new IntervalDownsampler(1000, RANGE, BUCKET_COUNT);
+        downsampler.add(createInterval(0, 5000, "20815", true));
+        downsampler.add(createInterval(5000, 9000, "20815", true));
+        downsampler.add(createInterval(9000, 50000, "20801", true));
+        downsampler.add(createInterval(50000, RANGE * 2, null, false));
+
+        final StateInterval[] intervals = downsampler.getIntervals();
+        assertEquals(3, intervals.length);
+        assertInterval(intervals[0], 1000, 9000, "20815");
+        assertInterval(intervals[1], 9000, 50000, "20801");
+        assertInterval(intervals[2], 50000, RANGE, null);
+    }
+
+    public void testConnectionStart() {
+        final IntervalDownsampler downsampler = new IntervalDownsampler(0, RANGE, BUCKET_COUNT);
+        downsampler.add(createInterval(0, 1000, null, false));
+        downsampler.add(createInterval(1000, 2000, "20815", true));
+        downsampler.add(createInterval(2000, 2005, "20801", true));
+        assertEquals(1000, downsampler.getConnectionStart(2005));
+        assertEquals(-1, downsampler.getConnectionStart(3000));
+
+        downsampler.add(createInterval(2005, 3000, null, false));
+        assertEquals(-1, downsampler.getConnectionStart(3000));
+    }
+
+    private static StateInterval createInterval(long start, long end, String mobileOperator,
+            boolean mobileConnected) {
+        final StateInterval si = new StateInterval();
+        si.start = start;
+        si.end = end;
+        si.mobileOperator = mobileOperator;
+        si.mobileConnected = mobileConnected;
+        si.powerOn = true;
+        return si;
+    }
+
+    private static void assertInterval(StateInterval si, long start, long end, String mobileOperator) {
+        assertEquals(start, si.start);
+        assertEquals(end, si.end);
+        assertEquals(mobileOperator, si.mobileOperator);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.pixmob.freemobile.netstat.MonitorService.PendingInsertWorker;
+import org.pixmob.freemobile.netstat.content.EventStore;
+import org.pixmob.freemobile.netstat.content.FailingEventWriter;
+import org.pixmob.freemobile.netstat.content.TestDatabase;
+
+import android.database.sqlite.SQLiteException;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for batches which cannot be written to the database, and for events
+ * replayed from the journal.
+ * @author Pixmob
+ */
+public class PendingInsertWorkerTest extends AndroidTestCase {
+    private static final int JOURNAL_CAPACITY = 16;
+    private static final int BATCH_SIZE = 8;
+    /**
+     * Timestamp of the first event: 2012-01-10 00:00 UTC.
+     */
+    private static final long FIRST_TIMESTAMP = 1326153600000L;
+    private TestDatabase database;
+    private File journalFile;
+    private EventJournal journal;
+    private FailingEventWriter writer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        database = new TestDatabase(getContext(), "journal-test.db");
+        journalFile = new File(getContext().getCacheDir(), "journal-test.journal");
+        journalFile.delete();
+        journal = new EventJournal(journalFile, JOURNAL_CAPACITY);
+        writer = new FailingEventWriter(database);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        writer.close();
+        journal.close();
+        journalFile.delete();
+        database.close();
+        super.tearDown();
+    }
+
+    public void testRetryAbandonedBatch() throws Exception {
+        final PendingInsertWorker worker = createWorker();
+        abandon(worker, 0);
+        write(worker, 1);
+
+        // The abandoned event is written once a later batch is written.
+        worker.retryAbandonedBatches();
+        assertEventCount(2);
+        assertNothingToReplay();
+    }
+
+    public void testReplayAbandonedBatch() throws Exception {
+        PendingInsertWorker worker = createWorker();
+        abandon(worker, 0);
+        write(worker, 1);
+        write(worker, 2);
+        assertEventCount(2);
+
+        // The service is stopped before the abandoned event is written again:
+        // the abandoned event is replayed, and events written after it are
+        // skipped.
+        journal.close();
+        journal = new EventJournal(journalFile, JOURNAL_CAPACITY);
+        assertEquals(1, journal.getReplayFrom());
+        assertEquals(3, journal.getReplayTo());
+        worker = createWorker();
+        worker.replayJournal();
+        assertEventCount(3);
+        assertNothingToReplay();
+    }
+
+    private PendingInsertWorker createWorker() {
+        return new PendingInsertWorker(writer, new EventRingBuffer(4), journal, BATCH_SIZE, 0);
+    }
+
+    /**
+     * Write a batch holding a single event, which is appended to the journal
+     * first.
+     * @param i index of the event
+     */
+    private void write(PendingInsertWorker worker, int i) {
+        worker.add(createEvent(i));
+        worker.flushBatch();
+        worker.recycleBatch();
+    }
+
+    /**
+     * Write a batch holding a single event, and give up after a database
+     * error.
+     * @param i index of the event
+     */
+    private void abandon(PendingInsertWorker worker, int i) {
+        writer.failing = true;
+        worker.add(createEvent(i));
+        try {
+            worker.flushBatch();
+            fail("Database error expected");
+        } catch (SQLiteException e) {
+            worker.abandonBatch();
+        } finally {
+            writer.failing = false;
+        }
+    }
+
+    private Event createEvent(int i) {
+        final Event e = Event.obtain();
+        e.timestamp = FIRST_TIMESTAMP + i * 60000L;
+        e.screenOn = i % 2 == 0;
+        e.mobileConnected = true;
+        e.mobileOperator = "20815";
+        e.batteryLevel = 50 + i;
+        e.powerOn = true;
+        assertTrue(journal.append(e) != 0);
+        return e;
+    }
+
+    private void assertEventCount(int count) {
+        final EventStore store = database.createStore();
+        assertEquals(count, store.countEvents(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    /**
+     * Check that every journal record is marked as applied.
+     */
+    private void assertNothingToReplay() throws IOException {
+        journal.close();
+        journal = new EventJournal(journalFile, JOURNAL_CAPACITY);
+        assertTrue(journal.getReplayFrom() > journal.getReplayTo());
+    }
+}
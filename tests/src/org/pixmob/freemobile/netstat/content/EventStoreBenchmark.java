@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import static org.pixmob.freemobile.netstat.Constants.TAG;
+
+import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compare reading events through the content provider with reading events
+ * through {@link EventStore}, on a separate database filled with synthetic
+ * events. The provider is queried through a content resolver. The best time of
+ * several runs is reported for each path. Results are written to the log.
+ * <p>
+ * The heap footprint and the load time of events loaded as {@link Event}
+ * instances, like statistics were loaded before events were streamed, are
+ * compared with events streamed to a visitor which only keeps running totals,
+ * like statistics are computed now. The heap footprint is the used heap size
+ * difference after a garbage collection.
+ * <p>
+ * Benchmarks are run from a development computer, with the test application
+ * installed:
+ * 
+ * <pre>
+ * adb shell am instrument -w -e class org.pixmob.freemobile.netstat.content.EventStoreBenchmark \
+ *     org.pixmob.freemobile.netstat.tests/android.test.InstrumentationTestRunner
+ * </pre>
+ * @author Pixmob
+ */
+public class EventStoreBenchmark extends AndroidTestCase {
+    private static final int EVENT_COUNT = 100000;
+    private static final int RUNS = 5;
+    private TestDatabase database;
+    private long from;
+    private long to;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        database = new TestDatabase(getContext(), "benchmark.db");
+        final long start = System.nanoTime();
+        final EventWriter writer = database.createWriter();
+        try {
+            SyntheticEvents.write(writer, EVENT_COUNT);
+        } finally {
+            writer.close();
+        }
+        Log.i(TAG, "Benchmark: " + EVENT_COUNT + " events written in " + toMillis(System.nanoTime() - start)
+                + " ms");
+        from = SyntheticEvents.FIRST_TIMESTAMP;
+        to = SyntheticEvents.getEnd(EVENT_COUNT);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        database.close();
+        super.tearDown();
+    }
+
+    public void testReadEvents() {
+        final EventStore store = database.createStore();
+        long providerTime = Long.MAX_VALUE;
+        long visitTime = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; ++i) {
+            long start = System.nanoTime();
+            assertEquals(EVENT_COUNT, readCursor(queryProvider()));
+            providerTime = Math.min(providerTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertEquals(EVENT_COUNT, store.visitEvents(from, to, new ChecksumVisitor()));
+            visitTime = Math.min(visitTime, System.nanoTime() - start);
+        }
+        Log.i(TAG, "Benchmark: " + EVENT_COUNT + " events read in " + toMillis(providerTime)
+                + " ms with the content provider, " + toMillis(visitTime) + " ms with EventStore.visitEvents");
+    }
+
+    public void testLoadEvents() {
+        final EventStore store = database.createStore();
+        long objectsTime = Long.MAX_VALUE;
+        long streamTime = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; ++i) {
+            long start = System.nanoTime();
+            assertEquals(EVENT_COUNT, loadObjects(queryProvider()).length);
+            objectsTime = Math.min(objectsTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertEquals(EVENT_COUNT, store.visitEvents(from, to, new ChecksumVisitor()));
+            streamTime = Math.min(streamTime, System.nanoTime() - start);
+        }
+        Log.i(TAG, "Benchmark: " + EVENT_COUNT + " events loaded in " + toMillis(objectsTime)
+                + " ms as Event instances, streamed in " + toMillis(streamTime) + " ms");
+
+        // The loaded events are still referenced when the used heap size is
+        // measured.
+        long used = getUsedMemory();
+        final Event[] objects = loadObjects(queryProvider());
+        final long objectsFootprint = getUsedMemory() - used;
+        assertEquals(EVENT_COUNT, objects.length);
+
+        used = getUsedMemory();
+        final ChecksumVisitor visitor = new ChecksumVisitor();
+        assertEquals(EVENT_COUNT, store.visitEvents(from, to, visitor));
+        final long streamFootprint = getUsedMemory() - used;
+        Log.i(TAG, "Benchmark: " + EVENT_COUNT + " events use " + objectsFootprint / 1024
+                + " KB as Event instances, " + streamFootprint / 1024 + " KB when streamed (checksum "
+                + visitor.checksum + ")");
+    }
+
+    /**
+     * Query every event through the content provider.
+     */
+    private Cursor queryProvider() {
+        return database.getContentResolver().query(Events.buildRangeUri(from, to), ArchiveCursor.ALL_COLUMNS,
+            null, null, Events.TIMESTAMP + " ASC");
+    }
+
+    /**
+     * Read every column of every row from a cursor, which is closed.
+     * @return number of read events
+     */
+    private static int readCursor(Cursor c) {
+        final ChecksumVisitor visitor = new ChecksumVisitor();
+        int count = 0;
+        try {
+            while (c.moveToNext()) {
+                ++count;
+                c.getLong(0);
+                visitor.visit(c.getLong(1), c.getInt(2) + c.getInt(4) + c.getInt(6) + c.getInt(7), c.getString(3),
+                    c.getInt(5));
+            }
+        } finally {
+            c.close();
+        }
+        return count;
+    }
+
+    /**
+     * Load events from a cursor as {@link Event} instances, one for each row.
+     * The cursor is closed.
+     */
+    private static Event[] loadObjects(Cursor c) {
+        try {
+            final Event[] events = new Event[c.getCount()];
+            for (int i = 0; c.moveToNext(); ++i) {
+                final Event e = new Event();
+                e.read(c);
+                events[i] = e;
+            }
+            return events;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Get the used heap size after a garbage collection.
+     */
+    private static long getUsedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            runtime.gc();
+            runtime.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    /**
+     * Visitor reading every event value, so that reads are not optimized away.
+     * @author Pixmob
+     */
+    private static class ChecksumVisitor implements EventStore.Visitor {
+        public long checksum;
+
+        @Override
+        public boolean visit(long timestamp, int flags, String mobileOperator, int batteryLevel) {
+            checksum += timestamp + flags + batteryLevel + (mobileOperator == null ? 0 : mobileOperator.length());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import org.pixmob.freemobile.netstat.Event;
+
+import android.database.sqlite.SQLiteException;
+
+/**
+ * Event writer for a test database, where writes fail on request.
+ * @author Pixmob
+ */
+public class FailingEventWriter extends EventWriter {
+    /**
+     * When this value is <code>true</code>, writes fail with a
+     * {@link SQLiteException}.
+     */
+    public boolean failing;
+
+    public FailingEventWriter(final TestDatabase database) {
+        super(database.getDatabaseHelper());
+    }
+
+    @Override
+    public void write(Event[] events, int count) {
+        if (failing) {
+            throw new SQLiteException("Database error for tests");
+        }
+        super.write(events, count);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import static org.pixmob.freemobile.netstat.Constants.TAG;
+
+import java.util.Arrays;
+
+import org.pixmob.freemobile.netstat.Event;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Measure the latency of event inserts while a month-long statistics query is
+ * running on another thread, on a separate database filled with a month of
+ * synthetic events. Inserts are made by batch, like the monitor service does.
+ * The latency is first measured without concurrent queries, then while the
+ * month of events is read again and again with {@link EventStore}. The time
+ * spent by a checkpoint of the write-ahead log is also measured. Results are
+ * written to the log.
+ * <p>
+ * Benchmarks are run from a development computer, with the test application
+ * installed:
+ *
+ * <pre>
+ * adb shell am instrument -w -e class org.pixmob.freemobile.netstat.content.InsertLatencyBenchmark \
+ *     org.pixmob.freemobile.netstat.tests/android.test.InstrumentationTestRunner
+ * </pre>
+ * @author Pixmob
+ */
+public class InsertLatencyBenchmark extends AndroidTestCase {
+    /**
+     * Number of synthetic events in a month.
+     */
+    private static final int MONTH_EVENT_COUNT = (int) (30 * 86400 * 1000L / SyntheticEvents.EVENT_INTERVAL);
+    /**
+     * Number of events inserted in a single transaction, like the monitor
+     * service does.
+     */
+    private static final int BATCH_SIZE = 32;
+    private static final int BATCH_COUNT = 200;
+    private TestDatabase database;
+    private EventWriter writer;
+    private Event[] batch;
+    private int nextEvent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        database = new TestDatabase(getContext(), "latency.db");
+        writer = database.createWriter();
+        SyntheticEvents.write(writer, MONTH_EVENT_COUNT);
+        nextEvent = MONTH_EVENT_COUNT;
+        batch = new Event[BATCH_SIZE];
+        for (int i = 0; i < batch.length; ++i) {
+            batch[i] = Event.obtain();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (final Event e : batch) {
+            e.recycle();
+        }
+        writer.close();
+        database.close();
+        super.tearDown();
+    }
+
+    public void testInsertLatency() throws InterruptedException {
+        final long[] idleLatencies = measureInserts();
+
+        final QueryThread query = new QueryThread(database.createStore());
+        query.start();
+        final long[] busyLatencies;
+        try {
+            busyLatencies = measureInserts();
+        } finally {
+            query.interrupt();
+            query.join();
+        }
+        assertNull(query.error);
+
+        final long start = System.nanoTime();
+        database.createMaintenance().checkpoint();
+        final long checkpointTime = System.nanoTime() - start;
+
+        Log.i(TAG, "Benchmark: " + BATCH_SIZE + " events inserted in " + toMicros(idleLatencies) + " without"
+                + " queries, in " + toMicros(busyLatencies) + " while " + query.queryCount + " month-long"
+                + " statistics queries were running; checkpoint in " + checkpointTime / 1000000 + " ms");
+    }
+
+    /**
+     * Insert batches of events.
+     * @return sorted insert latencies (in nanoseconds)
+     */
+    private long[] measureInserts() {
+        final long[] latencies = new long[BATCH_COUNT];
+        for (int i = 0; i < BATCH_COUNT; ++i) {
+            for (final Event e : batch) {
+                SyntheticEvents.set(e, nextEvent++);
+            }
+            final long start = System.nanoTime();
+            writer.write(batch, batch.length);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /**
+     * Format the median and the maximum of sorted latencies.
+     */
+    private static String toMicros(long[] latencies) {
+        return latencies[latencies.length / 2] / 1000 + " us (median), " + latencies[latencies.length - 1] / 1000
+                + " us (max)";
+    }
+
+    /**
+     * Thread reading the month of events until it is interrupted.
+     * @author Pixmob
+     */
+    private static class QueryThread extends Thread {
+        private final EventStore store;
+        public volatile int queryCount;
+        public volatile RuntimeException error;
+
+        public QueryThread(final EventStore store) {
+            super("Benchmark/Query");
+            this.store = store;
+        }
+
+        @Override
+        public void run() {
+            final EventStore.Visitor visitor = new EventStore.Visitor() {
+                @Override
+                public boolean visit(long timestamp, int flags, String mobileOperator, int batteryLevel) {
+                    return !isInterrupted();
+                }
+            };
+            final long to = SyntheticEvents.getEnd(MONTH_EVENT_COUNT);
+            try {
+                while (!isInterrupted()) {
+                    store.visitEvents(SyntheticEvents.FIRST_TIMESTAMP, to, visitor);
+                    ++queryCount;
+                }
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import static org.pixmob.freemobile.netstat.Constants.TAG;
+
+import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Measure the query time over a month of events before and after the database
+ * migrations, and the time spent migrating. A database is created with the
+ * oldest supported schema (a single events table, without indexes), and filled
+ * with a month of synthetic events. The same statistics query is run before
+ * and after the database is upgraded by {@link DatabaseHelper}. The best time
+ * of several runs is reported for each query. Results are written to the log.
+ * <p>
+ * Benchmarks are run from a development computer, with the test application
+ * installed:
+ *
+ * <pre>
+ * adb shell am instrument -w -e class org.pixmob.freemobile.netstat.content.MigrationBenchmark \
+ *     org.pixmob.freemobile.netstat.tests/android.test.InstrumentationTestRunner
+ * </pre>
+ * @author Pixmob
+ */
+public class MigrationBenchmark extends AndroidTestCase {
+    private static final String DATABASE_NAME = "migration.db";
+    /**
+     * Oldest database version which is upgraded without losing events.
+     */
+    private static final int OLDEST_VERSION = 2;
+    /**
+     * Number of synthetic events in a month.
+     */
+    private static final int EVENT_COUNT = (int) (30 * 86400 * 1000L / SyntheticEvents.EVENT_INTERVAL);
+    private static final int RUNS = 5;
+    /**
+     * Statistics query: every column read by statistics, in timestamp order.
+     */
+    private static final String QUERY = "SELECT " + Events.TIMESTAMP + ", " + Events.MOBILE_CONNECTED + ", "
+            + Events.MOBILE_OPERATOR + ", " + Events.WIFI_CONNECTED + ", " + Events.BATTERY_LEVEL + ", "
+            + Events.SCREEN_ON + ", " + Events.POWER_ON + " FROM " + DatabaseHelper.EVENTS_TABLE + " WHERE "
+            + Events.TIMESTAMP + ">=? AND " + Events.TIMESTAMP + "<? ORDER BY " + Events.TIMESTAMP + " ASC";
+    private TestDatabase database;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (database != null) {
+            database.close();
+        }
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testMigration() {
+        final SQLiteDatabase oldDb = getContext().openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+        try {
+            createOldDatabase(oldDb);
+            final long oldQueryTime = measureQuery(oldDb);
+            Log.i(TAG, "Benchmark: " + EVENT_COUNT + " events queried in " + toMillis(oldQueryTime)
+                    + " ms from database version " + OLDEST_VERSION);
+        } finally {
+            oldDb.close();
+        }
+
+        database = new TestDatabase(getContext(), DATABASE_NAME, false);
+        final long start = System.nanoTime();
+        final SQLiteDatabase db = database.getDatabaseHelper().getWritableDatabase();
+        final long migrationTime = System.nanoTime() - start;
+
+        final long queryTime = measureQuery(db);
+        final EventStore store = database.createStore();
+        final EventStore.Visitor visitor = new EventStore.Visitor() {
+            @Override
+            public boolean visit(long timestamp, int flags, String mobileOperator, int batteryLevel) {
+                return true;
+            }
+        };
+        final long to = SyntheticEvents.getEnd(EVENT_COUNT);
+        long visitTime = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; ++i) {
+            final long visitStart = System.nanoTime();
+            assertEquals(EVENT_COUNT, store.visitEvents(SyntheticEvents.FIRST_TIMESTAMP, to, visitor));
+            visitTime = Math.min(visitTime, System.nanoTime() - visitStart);
+        }
+        Log.i(TAG, "Benchmark: " + EVENT_COUNT + " events migrated in " + toMillis(migrationTime) + " ms, "
+                + "queried in " + toMillis(queryTime) + " ms from the events view, " + toMillis(visitTime)
+                + " ms with EventStore.visitEvents");
+    }
+
+    /**
+     * Create the events table of the oldest supported database version, and
+     * fill it with a month of synthetic events.
+     */
+    private static void createOldDatabase(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + DatabaseHelper.EVENTS_TABLE + " (" + Events._ID
+                + " INTEGER PRIMARY KEY AUTOINCREMENT, " + Events.TIMESTAMP + " TIMESTAMP NOT NULL, "
+                + Events.MOBILE_CONNECTED + " INTEGER NOT NULL, " + Events.MOBILE_OPERATOR + " TEXT, "
+                + Events.WIFI_CONNECTED + " INTEGER NOT NULL, " + Events.BATTERY_LEVEL + " INTEGER NOT NULL, "
+                + Events.SCREEN_ON + " INTEGER NOT NULL, " + Events.POWER_ON + " INTEGER NOT NULL)");
+        final SQLiteStatement insert = db.compileStatement("INSERT INTO " + DatabaseHelper.EVENTS_TABLE + " ("
+                + Events.TIMESTAMP + ", " + Events.MOBILE_CONNECTED + ", " + Events.MOBILE_OPERATOR + ", "
+                + Events.WIFI_CONNECTED + ", " + Events.BATTERY_LEVEL + ", " + Events.SCREEN_ON + ", "
+                + Events.POWER_ON + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+        final Event e = Event.obtain();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < EVENT_COUNT; ++i) {
+                SyntheticEvents.set(e, i);
+                insert.bindLong(1, e.timestamp);
+                insert.bindLong(2, e.mobileConnected ? 1 : 0);
+                insert.bindString(3, e.mobileOperator);
+                insert.bindLong(4, e.wifiConnected ? 1 : 0);
+                insert.bindLong(5, e.batteryLevel);
+                insert.bindLong(6, e.screenOn ? 1 : 0);
+                insert.bindLong(7, e.powerOn ? 1 : 0);
+                insert.executeInsert();
+            }
+            db.setVersion(OLDEST_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            e.recycle();
+        }
+    }
+
+    /**
+     * Run the statistics query over the month of events.
+     * @return best query time (in nanoseconds)
+     */
+    private static long measureQuery(SQLiteDatabase db) {
+        final String[] args = { String.valueOf(SyntheticEvents.FIRST_TIMESTAMP),
+                String.valueOf(SyntheticEvents.getEnd(EVENT_COUNT)) };
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; ++i) {
+            final long start = System.nanoTime();
+            final Cursor c = db.rawQuery(QUERY, args);
+            int count = 0;
+            try {
+                while (c.moveToNext()) {
+                    ++count;
+                    c.getLong(0);
+                    c.getInt(1);
+                    c.getString(2);
+                    c.getInt(3);
+                    c.getInt(4);
+                    c.getInt(5);
+                    c.getInt(6);
+                }
+            } finally {
+                c.close();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            assertEquals(EVENT_COUNT, count);
+        }
+        return best;
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import org.pixmob.freemobile.netstat.Event;
+import org.pixmob.freemobile.netstat.content.NetstatContract.Events;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for event queries, with and without archived events.
+ * @author Pixmob
+ */
+public class NetstatContentProviderTest extends AndroidTestCase {
+    /**
+     * Start of the first day with events: 2012-01-10 00:00 UTC.
+     */
+    private static final long ARCHIVED_DAY = 1326153600000L;
+    /**
+     * Start of the second day with events: 2012-03-10 00:00 UTC.
+     */
+    private static final long LIVE_DAY = 1331337600000L;
+    /**
+     * Archive limit: 2012-03-01 00:00 UTC.
+     */
+    private static final long ARCHIVE_BEFORE = 1330560000000L;
+    private static final int EVENTS_PER_DAY = 10;
+    private TestDatabase database;
+    private ContentResolver resolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        database = new TestDatabase(getContext(), "provider-test.db");
+        resolver = database.getContentResolver();
+        final EventWriter writer = database.createWriter();
+        try {
+            writeDay(writer, ARCHIVED_DAY);
+            writeDay(writer, LIVE_DAY);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        database.close();
+        super.tearDown();
+    }
+
+    public void testSelectionWithoutArchive() {
+        // The screen is on for half of the events of both days.
+        assertEquals(EVENTS_PER_DAY, count(Events.SCREEN_ON + "=1", Events.TIMESTAMP));
+        assertEquals(EVENTS_PER_DAY, count(Events.SCREEN_ON + "=0", Events.BATTERY_LEVEL + " DESC"));
+        final Cursor c = resolver.query(Events.CONTENT_URI, new String[] { "COUNT(*)" }, null, null, null);
+        try {
+            assertTrue(c.moveToNext());
+            assertEquals(2 * EVENTS_PER_DAY, c.getInt(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testArchivedEvents() throws Exception {
+        assertEquals(EVENTS_PER_DAY, database.createMaintenance().archiveEvents(ARCHIVE_BEFORE));
+
+        // Archived events are merged with live events.
+        assertEquals(2 * EVENTS_PER_DAY, count(null, Events.TIMESTAMP));
+        assertEquals(2 * EVENTS_PER_DAY, count(null, Events.TIMESTAMP + " DESC"));
+
+        // Archived events are not included in unsupported queries.
+        assertEquals(EVENTS_PER_DAY / 2, count(Events.SCREEN_ON + "=1", Events.TIMESTAMP));
+        assertEquals(EVENTS_PER_DAY, count(null, Events.BATTERY_LEVEL));
+
+        // Queries starting after archived events are not changed.
+        final Cursor c = resolver.query(Events.buildRangeUri(ARCHIVE_BEFORE, Long.MAX_VALUE), null,
+            Events.SCREEN_ON + "=1", null, null);
+        try {
+            assertEquals(EVENTS_PER_DAY / 2, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    private int count(String selection, String sortOrder) {
+        final Cursor c = resolver.query(Events.CONTENT_URI, null, selection, null, sortOrder);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Write events during a day: the screen is on for every other event.
+     */
+    private static void writeDay(EventWriter writer, long day) {
+        final Event[] events = new Event[EVENTS_PER_DAY];
+        for (int i = 0; i < events.length; ++i) {
+            final Event e = Event.obtain();
+            e.timestamp = day + i * 60000L;
+            e.screenOn = i % 2 == 0;
+            e.mobileConnected = true;
+            e.mobileOperator = "20815";
+            e.batteryLevel = 50 + i;
+            e.powerOn = true;
+            events[i] = e;
+        }
+        writer.write(events, events.length);
+        for (final Event e : events) {
+            e.recycle();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import org.pixmob.freemobile.netstat.Event;
+
+/**
+ * Synthetic events for tests and benchmarks: connection states change every
+ * few minutes, and the battery level changes every few events.
+ * @author Pixmob
+ */
+public final class SyntheticEvents {
+    /**
+     * Timestamp of the first synthetic event: 2012-01-01 00:00 UTC.
+     */
+    public static final long FIRST_TIMESTAMP = 1325376000000L;
+    /**
+     * Time between synthetic events (in milliseconds).
+     */
+    public static final long EVENT_INTERVAL = 30000;
+    /**
+     * Number of events inserted in a single transaction.
+     */
+    private static final int WRITE_BATCH_SIZE = 500;
+
+    private SyntheticEvents() {
+    }
+
+    /**
+     * Set the values of a synthetic event.
+     * @param i index of the event
+     */
+    public static void set(Event e, int i) {
+        e.timestamp = FIRST_TIMESTAMP + i * EVENT_INTERVAL;
+        e.screenOn = i / 20 % 3 == 0;
+        e.wifiConnected = i / 50 % 2 == 0;
+        e.mobileConnected = i / 7 % 5 != 0;
+        e.mobileOperator = i / 100 % 2 == 0 ? "20815" : "20801";
+        e.batteryLevel = 100 - i / 10 % 100;
+        // The device is shut down every few thousand events.
+        e.powerOn = i % 5000 != 4999;
+    }
+
+    /**
+     * Get the end of the time range holding synthetic events (exclusive).
+     */
+    public static long getEnd(int eventCount) {
+        return FIRST_TIMESTAMP + eventCount * EVENT_INTERVAL;
+    }
+
+    /**
+     * Write synthetic events by batch.
+     */
+    public static void write(EventWriter writer, int eventCount) {
+        write(writer, 0, eventCount);
+    }
+
+    /**
+     * Write synthetic events by batch.
+     * @param first index of the first event (inclusive)
+     * @param end index of the last event (exclusive)
+     */
+    public static void write(EventWriter writer, int first, int end) {
+        final Event[] batch = new Event[WRITE_BATCH_SIZE];
+        for (int i = 0; i < batch.length; ++i) {
+            batch[i] = Event.obtain();
+        }
+        try {
+            int n = 0;
+            for (int i = first; i < end; ++i) {
+                set(batch[n++], i);
+                if (n == batch.length || i == end - 1) {
+                    writer.write(batch, n);
+                    n = 0;
+                }
+            }
+        } finally {
+            for (final Event e : batch) {
+                e.recycle();
+            }
+        }
+    }
+}
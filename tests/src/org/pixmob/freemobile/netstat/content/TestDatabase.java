@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2012 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.freemobile.netstat.content;
+
+import java.io.File;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.test.mock.MockContentResolver;
+
+/**
+ * Separate database for tests and benchmarks. The database is deleted when it
+ * is opened, unless an existing database is upgraded, and when it is closed:
+ * the application database is not modified.
+ * @author Pixmob
+ */
+public class TestDatabase {
+    private final Context context;
+    private final String name;
+    private final File archiveDir;
+    private final DatabaseHelper dbHelper;
+    private MockContentResolver contentResolver;
+
+    /**
+     * Create an empty database.
+     * @param name database file name
+     */
+    public TestDatabase(final Context context, final String name) {
+        this(context, name, true);
+    }
+
+    /**
+     * Create a database.
+     * @param name database file name
+     * @param empty delete an existing database with the same name: if
+     *            <code>false</code>, an existing database is upgraded when it
+     *            is first opened
+     */
+    public TestDatabase(final Context context, final String name, final boolean empty) {
+        this.context = context;
+        this.name = name;
+        archiveDir = new File(context.getCacheDir(), name + ".archive");
+        if (empty) {
+            delete();
+        }
+        dbHelper = new DatabaseHelper(context, name, archiveDir);
+    }
+
+    public EventWriter createWriter() {
+        return new EventWriter(dbHelper);
+    }
+
+    public EventStore createStore() {
+        return new EventStore(dbHelper);
+    }
+
+    public DatabaseMaintenance createMaintenance() {
+        return new DatabaseMaintenance(dbHelper);
+    }
+
+    /**
+     * Get a content resolver where the content provider reads this database.
+     */
+    public synchronized ContentResolver getContentResolver() {
+        if (contentResolver == null) {
+            final NetstatContentProvider provider = new NetstatContentProvider(dbHelper);
+            provider.attachInfo(context, null);
+            contentResolver = new MockContentResolver();
+            contentResolver.addProvider(NetstatContract.AUTHORITY, provider);
+        }
+        return contentResolver;
+    }
+
+    /**
+     * Close and delete this database.
+     */
+    public void close() {
+        dbHelper.close();
+        delete();
+    }
+
+    DatabaseHelper getDatabaseHelper() {
+        return dbHelper;
+    }
+
+    private void delete() {
+        context.deleteDatabase(name);
+        final File[] files = archiveDir.listFiles();
+        if (files != null) {
+            for (final File f : files) {
+                f.delete();
+            }
+        }
+        archiveDir.delete();
+    }
+}